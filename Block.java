@@ -1,24 +1,42 @@
 package blockchain;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Block {
 
-    public static final double COINBASE = 25;
+    public static final long COINBASE = 25 * Transaction.COIN;
+
+    private static final byte[] NULL_TX_HASH = new byte[32];
 
     private byte[] hash;
     private byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
 
+    /** Merkle tree over the coinbase hash followed by the hashes of {@code txs} */
+    private MerkleTree merkleTree;
+    /** root the current {@code hash} was computed from */
+    private byte[] hashedRoot;
+
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
         prevBlockHash = prevHash;
         coinbase = new Transaction(COINBASE, address);
         txs = new ArrayList<Transaction>();
+        merkleTree = new MerkleTree();
+        merkleTree.append(coinbase.getHash());
+    }
+
+    /** Rebuilds a block around an existing {@code coinbase}, for decoding */
+    Block(byte[] prevHash, Transaction coinbase) {
+        prevBlockHash = prevHash;
+        this.coinbase = coinbase;
+        txs = new ArrayList<Transaction>();
+        merkleTree = new MerkleTree();
+        merkleTree.append(leafHash(coinbase));
     }
 
     public Transaction getCoinbase() {
@@ -41,34 +59,92 @@ public class Block {
         return txs.get(index);
     }
 
+    /** Adds {@code tx} to the block, finalizing it and adding its hash to the Merkle tree */
     public void addTransaction(Transaction tx) {
         txs.add(tx);
+        merkleTree.append(leafHash(tx));
     }
 
+    /** @return the Merkle root over the coinbase and transaction hashes */
+    public byte[] getMerkleRoot() {
+        syncMerkleTree();
+        return merkleTree.getRoot();
+    }
+
+    /**
+     * @return a proof that the transaction with hash {@code txHash} (or the coinbase) is in this
+     *         block, or null if it is not
+     */
+    public MerkleProof getMerkleProof(byte[] txHash) {
+        byte[] root = getMerkleRoot();
+        int index = merkleTree.indexOf(txHash);
+        if (index < 0)
+            return null;
+        MerkleProof proof = merkleTree.getProof(index);
+        proof.setHeader(prevBlockHash, root);
+        return proof;
+    }
+
+    /** @return the block header, {@code prevBlockHash || merkleRoot}, which is what gets hashed */
     public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
+        byte[] root = getMerkleRoot();
+        int prevLength = prevBlockHash == null ? 0 : prevBlockHash.length;
+        byte[] raw = new byte[prevLength + root.length];
         if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
-        for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
-            }
-        }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
+            System.arraycopy(prevBlockHash, 0, raw, 0, prevLength);
+        System.arraycopy(root, 0, raw, prevLength, root.length);
         return raw;
     }
 
+    /**
+     * Computes the hash of the block header. Transactions changed or added through
+     * {@link #getTransactions()} are picked up here as well, so every call walks all n
+     * transactions and compares each cached hash with its leaf, O(n) work but no digest for an
+     * unchanged transaction. Only the paths of changed leaves are rehashed, O(log n) hashes each.
+     */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+        byte[] root = getMerkleRoot();
+        if (hash != null && root == hashedRoot)
+            return;
+        MessageDigest md = Crypto.sha256();
+        if (prevBlockHash != null)
+            md.update(prevBlockHash);
+        md.update(root);
+        hash = md.digest();
+        hashedRoot = root;
+    }
+
+    /**
+     * Brings the Merkle leaves in line with the current transactions: compares every leaf, O(n),
+     * and rehashes only the paths of the changed ones
+     */
+    private void syncMerkleTree() {
+        if (merkleTree.size() > txs.size() + 1) {
+            merkleTree.clear();
+            merkleTree.append(coinbase.getHash());
+        }
+        syncLeaf(0, coinbase);
+        for (int i = 0; i < txs.size(); i++) {
+            Transaction tx = txs.get(i);
+            if (i + 1 == merkleTree.size())
+                merkleTree.append(leafHash(tx));
+            else
+                syncLeaf(i + 1, tx);
         }
     }
+
+    private void syncLeaf(int index, Transaction tx) {
+        byte[] txHash = leafHash(tx);
+        byte[] leaf = merkleTree.getLeaf(index);
+        if (leaf != txHash && !Arrays.equals(leaf, txHash))
+            merkleTree.set(index, txHash);
+    }
+
+    /** @return the finalized hash of {@code tx}, or all zeros for a null slot */
+    private static byte[] leafHash(Transaction tx) {
+        if (tx == null)
+            return NULL_TX_HASH;
+        tx.ensureFinalized();
+        return tx.getHash();
+    }
 }
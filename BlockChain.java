@@ -1,7 +1,18 @@
 //package blockchain;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 // Block Chain should maintain only limited block nodes to satisfy the functions
 // You should not have all the blocks added to the block chain in memory 
@@ -9,12 +20,38 @@ import java.util.Arrays;
 
 public class BlockChain {
     public static final int CUT_OFF_AGE = 10;
+    
+    //how per block utxo state is kept
+    //PERSISTENT: every node holds a full (structurally shared) UTXOPool snapshot
+    //DELTA: nodes hold only the UTXOs their block created and spent, pools are kept at the tip
+    //and at one root of the retained tree, the other roots hold overlays on that root's pool,
+    //and they are rolled along the deltas when another node is needed.
+    //those pools are compact tables, the tip's is advanced in place, so copy getMaxHeightUTXOPool() to keep it
+    public enum SnapshotMode { PERSISTENT, DELTA }
 
     public Block maxHeightBlock;
     public UTXOPool maxUtxoPool = new UTXOPool();
     public TransactionPool txPool = new TransactionPool();
-    public ArrayList<BlockNode> currentBlockChain = new ArrayList<>();
+    public HashMap<Hash256, BlockNode> blockIndex = new HashMap<>();
+    public BlockNode maxHeightBlockNode;
     public int maxHeight = 0;
+    private SnapshotMode snapshotMode;
+    private ExecutorService signatureExecutor = ForkJoinPool.commonPool();
+    private SignatureCache signatureCache = new SignatureCache();
+    //log every added block is written to, so blocks past CUT_OFF_AGE can still be read back, null keeps none
+    private BlockStore blockStore;
+    //where and how often the tip's utxo set is saved, see setSnapshotSchedule
+    private Path snapshotFile;
+    private int snapshotInterval;
+    //runs scheduled snapshot writes one at a time, off addBlock
+    private ExecutorService snapshotExecutor;
+    private Future<?> lastSnapshot;
+    private volatile IOException snapshotFailure;
+    private final Hash256 hashProbe = new Hash256(new byte[0]);
+    
+    //retained nodes grouped by height, bucket (height % (CUT_OFF_AGE + 1)), so pruning drops whole heights
+    private ArrayList<ArrayList<BlockNode>> heightBuckets = new ArrayList<>(CUT_OFF_AGE + 1);
+    private int minRetainedHeight = 1;
     
     
     
@@ -24,7 +61,11 @@ public class BlockChain {
         private Block block;
         private byte[] blockHash;
         private byte[] parentBlockHash;
+        private Hash256 indexKey;
         private UTXOPool nodeUtxoPool;
+        private UTXODelta nodeDelta;
+        private BlockNode parent;
+        private ArrayList<BlockNode> children = new ArrayList<>();
         
         
         public BlockNode(Block b){
@@ -66,6 +107,30 @@ public class BlockChain {
        public UTXOPool getNodeUtxoPool(){
            return nodeUtxoPool;
        } 
+       
+       public void setNodeDelta(UTXODelta delta){
+           nodeDelta = delta;
+       }
+       
+       public UTXODelta getNodeDelta(){
+           return nodeDelta;
+       }
+       
+       public BlockNode getParent(){
+           return parent;
+       }
+       
+       public ArrayList<BlockNode> getChildren(){
+           return children;
+       }
+       
+       //link this node under its parent so the tree can be walked both ways
+       public void setParent(BlockNode p){
+           parent = p;
+           if(p != null){
+               p.children.add(this);
+           }
+       }
         
     }
     /**
@@ -75,12 +140,16 @@ public class BlockChain {
 
     
     public BlockChain(Block genesisBlock) {
+        this(genesisBlock, SnapshotMode.PERSISTENT);
+    }
+    
+    /** create a block chain with just a genesis block that keeps per block state as {@code mode} */
+    public BlockChain(Block genesisBlock, SnapshotMode mode) {
         // IMPLEMENT THIS
-        maxHeightBlock = genesisBlock;
-        maxHeight = 1;
+        snapshotMode = mode;
         
-        //initialized utxo pool for the genesis block
-        UTXOPool genUtxoPool = new UTXOPool();
+        //initialized utxo pool for the genesis block, delta mode keeps a single compact pool at the tip
+        UTXOPool genUtxoPool = snapshotMode == SnapshotMode.DELTA ? new UTXOPool(genesisBlock.getTransactions().size() + 1) : new UTXOPool();
 
         //Add genesis coinbase tx to UTXO pool
         Transaction coinbaseTx = genesisBlock.getCoinbase();
@@ -101,11 +170,153 @@ public class BlockChain {
             }
         }
         
+        initRoot(genesisBlock, 1, genUtxoPool);
+    }
+    
+    //create a block chain whose only block is {@code root} at {@code height}, with utxo set {@code pool} after it
+    private BlockChain(Block root, int height, UTXOPool pool, SnapshotMode mode) {
+        snapshotMode = mode;
+        initRoot(root, height, pool);
+    }
+    
+    private void initRoot(Block root, int height, UTXOPool pool) {
+        for(int i = 0; i <= CUT_OFF_AGE; i++){
+            heightBuckets.add(new ArrayList<>());
+        }
+        maxHeightBlock = root;
+        maxHeight = height;
+        minRetainedHeight = height;
+        
         //Create block node and add it to the blockchain
-        BlockNode genBlockNode = new BlockNode(genesisBlock, 1);
-        genBlockNode.setNodeUtxoPool(genUtxoPool);
-        currentBlockChain.add(genBlockNode);
+        BlockNode rootNode = new BlockNode(root, height);
+        rootNode.setNodeUtxoPool(pool);
+        indexBlockNode(rootNode);
+        maxHeightBlockNode = rootNode;
+        maxUtxoPool = pool;
+    }
+    
+    /**
+     * Restart a block chain from the snapshot in {@code snapshotFile} instead of from the genesis
+     * block. The snapshot's block, which must be in {@code store}, becomes the root, and the blocks
+     * appended to {@code store} after it are added again, so restart costs the blocks since the
+     * snapshot and not the whole chain. Blocks on branches that forked off before the snapshot do
+     * not connect and are skipped. The chain keeps writing to {@code store}.
+     */
+    public static BlockChain restore(Path snapshotFile, BlockStore store, SnapshotMode mode) throws IOException {
+        UTXOSnapshot snapshot = UTXOSnapshot.read(snapshotFile, mode == SnapshotMode.DELTA);
+        byte[] rootHash = snapshot.getBlockHash();
+        Block root = store.getBlock(rootHash);
+        if(root == null){
+            throw new IOException("the block of " + snapshotFile + " is not in the block store");
+        }
+        BlockChain chain = new BlockChain(root, snapshot.getHeight(), snapshot.getPool(), mode);
+        for(byte[] hash : store.getHashesAfter(rootHash)){
+            chain.addBlock(store.getBlock(hash));
+        }
+        chain.blockStore = store;
+        return chain;
+    }
+
+    /** Set the executor block validation verifies signatures on, or null to verify serially */
+    public void setSignatureExecutor(ExecutorService executor) {
+        signatureExecutor = executor;
+    }
 
+    /** Get the cache of verified signatures shared by block validation and mining */
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Write every block added from now on to {@code store}, null to stop. The blocks retained so
+     * far are written first, lowest first, so the store holds the chain from where it was set.
+     * A block is on disk before addBlock changes any state for it.
+     */
+    public void setBlockStore(BlockStore store) {
+        blockStore = store;
+        if(store == null){
+            return;
+        }
+        ArrayList<BlockNode> retained = new ArrayList<>(blockIndex.values());
+        retained.sort(Comparator.comparingInt(BlockNode::getHeight));
+        for(BlockNode node : retained){
+            storeBlock(node.getBlock());
+        }
+    }
+
+    /**
+     * Save the tip's utxo set to {@code file} each time the tip reaches a height that is a
+     * multiple of {@code interval}, so {@link #restore} has a recent point to restart from. A null
+     * file or an interval below 1 stops saving.
+     * 
+     * <p>
+     * addBlock only hands a copy of the pool to the snapshot executor once the block is part of
+     * the chain, the file is written there and a failed write never fails the block; see
+     * {@link #awaitSnapshot()}. Without {@link #setSnapshotExecutor} a single background thread
+     * is started for it.
+     */
+    public void setSnapshotSchedule(Path file, int interval) {
+        snapshotFile = interval > 0 ? file : null;
+        snapshotInterval = interval;
+        if(snapshotFile != null && snapshotExecutor == null){
+            snapshotExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "utxo-snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+    
+    /**
+     * Set the executor scheduled snapshots are written on. It must run its tasks one at a time,
+     * since they all replace the same file.
+     */
+    public void setSnapshotExecutor(ExecutorService executor) {
+        snapshotExecutor = executor;
+    }
+    
+    /**
+     * Wait for the last scheduled snapshot to be written
+     * 
+     * @return why the last scheduled snapshot could not be written, or null if it was written or
+     *         none was scheduled
+     */
+    public IOException awaitSnapshot() throws InterruptedException {
+        Future<?> pending = lastSnapshot;
+        if(pending != null){
+            try {
+                pending.get();
+            } catch(ExecutionException e){
+                //the task records its own failure
+            }
+        }
+        return snapshotFailure;
+    }
+    
+    /** Save the utxo set after the retained block {@code blockHash} to {@code file} */
+    public void writeSnapshot(Path file, byte[] blockHash) throws IOException {
+        BlockNode node = getBlockNodeFromHash(blockHash);
+        if(node == null){
+            throw new IllegalArgumentException("block is not retained");
+        }
+        UTXOSnapshot.write(file, node.getHash(), node.getHeight(), getNodeUtxoPool(node));
+    }
+
+    /** Get the block store added blocks are written to, or null */
+    public BlockStore getBlockStore() {
+        return blockStore;
+    }
+
+    /**
+     * Get the block with hash {@code blockHash}, from memory while it is retained and from the
+     * block store once it has been pruned, or null if neither has it
+     */
+    public Block getBlock(byte[] blockHash) {
+        BlockNode node = getBlockNodeFromHash(blockHash);
+        if(node != null){
+            return node.getBlock();
+        }
+        return blockStore == null ? null : blockStore.getBlock(blockHash);
     }
 
     /** Get the maximum height block */
@@ -117,7 +328,7 @@ public class BlockChain {
     /** Get the UTXOPool for mining a new block on top of max height block */
     public UTXOPool getMaxHeightUTXOPool() {
         // IMPLEMENT THIS
-        return getMaxHeightBlockNode().getNodeUtxoPool();
+        return maxHeightBlockNode.getNodeUtxoPool();
     }
 
     /** Get the transaction pool to mine a new block */
@@ -148,19 +359,20 @@ public class BlockChain {
 
         //Get the tx pool from the block we're building on top of
         BlockNode parentBlockNode = getBlockNodeFromHash(block.getPrevBlockHash());
-        if(!currentBlockChain.contains(parentBlockNode))
+        if(parentBlockNode == null)
             return false;
         
         //get utxo pool from previous block
-        UTXOPool parentUtxoPool;
-        if(parentBlockNode.getNodeUtxoPool() != null){
-            parentUtxoPool = parentBlockNode.getNodeUtxoPool();
-        } else {
+        UTXOPool parentUtxoPool = getNodeUtxoPool(parentBlockNode);
+        if(parentUtxoPool == null){
             return false;
         }
         
         //tx handler will take utxo pool from previous block and use that to validate current blocks tx's
+        //its changes stay in an overlay, so the parent's pool is left untouched
         TxHandler handler = new TxHandler(parentUtxoPool);
+        handler.setSignatureExecutor(signatureExecutor);
+        handler.setSignatureCache(signatureCache);
         
         //Get txs from current block and check if valid
         Transaction[] blockTxs = block.getTransactions().toArray(new Transaction[block.getTransactions().size()]);
@@ -169,45 +381,103 @@ public class BlockChain {
             return false;
         }
  
-        //add validated txs to blockchain tx pool
-        for(int i = 0; i < validatedTxs.length; i++){
-            addTransaction(validatedTxs[i]);
-        }
+        //tx handler will return an overlay with the block's changes, after .handleTxs(blockTxs)
+        UTXOPoolOverlay blockChanges = handler.getUTXOPool();
         
-        //tx handler will return updated utxo pool, after .handleTxs(blockTxs)
-        UTXOPool newUtxoPool = handler.getUTXOPool();
+        //log the valid block before any state changes, a failed write leaves the chain as it was
+        //and the store forces the record, so a block the chain accepted is on disk
+        if(blockStore != null){
+            storeBlock(block);
+        }
         
         //remember to add coinbase tx to utxo pool
         Transaction blockCoinbase = block.getCoinbase();
         for(int i =0; i <blockCoinbase.numOutputs(); i++){
             UTXO coinbaseUtxo = new UTXO(blockCoinbase.getHash(), i);
-            newUtxoPool.addUTXO(coinbaseUtxo, blockCoinbase.getOutput(i));
+            blockChanges.addUTXO(coinbaseUtxo, blockCoinbase.getOutput(i));
         }
         
         //prepare new block node and add it to the blockchain
         BlockNode newBlockNode = new BlockNode(block);
-        newBlockNode.setNodeUtxoPool(newUtxoPool);
         newBlockNode.setHeight(parentBlockNode.getHeight() + 1);
-        currentBlockChain.add(newBlockNode);
-        
-        //remove processed txs from txpool
-        for(int i = 0; i < blockTxs.length; i++){
-            txPool.removeTransaction(blockTxs[i].getHash());
+        newBlockNode.setParent(parentBlockNode);
+        boolean newTip = newBlockNode.getHeight() > maxHeight;
+        UTXOPool newUtxoPool = null;
+        if(snapshotMode == SnapshotMode.DELTA){
+            newBlockNode.setNodeDelta(blockChanges.toDelta());
+        }
+        if(snapshotMode == SnapshotMode.PERSISTENT){
+            //materialize as a snapshot sharing its untouched entries with the parent pool
+            newUtxoPool = new UTXOPool(blockChanges);
+        } else if(newTip){
+            newUtxoPool = advanceTipPool(blockChanges);
+        }
+        if(snapshotMode == SnapshotMode.PERSISTENT){
+            newBlockNode.setNodeUtxoPool(newUtxoPool);
         }
         
         //update max height block
-        if(newBlockNode.getHeight() > maxHeight){
+        if(newTip){
+            //in delta mode only the tip (and tree roots) keep a materialized pool
+            if(snapshotMode == SnapshotMode.DELTA){
+                if(maxHeightBlockNode.getParent() != null){
+                    maxHeightBlockNode.setNodeUtxoPool(null);
+                }
+                newBlockNode.setNodeUtxoPool(newUtxoPool);
+            }
+            BlockNode oldTip = maxHeightBlockNode;
             maxHeightBlock = newBlockNode.getBlock();
             maxHeight = newBlockNode.getHeight();
-            maxUtxoPool = newBlockNode.getNodeUtxoPool();
+            maxUtxoPool = newUtxoPool;
+            maxHeightBlockNode = newBlockNode;
+            
+            //txs confirmed on the new branch leave the txpool, txs only on the abandoned one come back
+            updateTxPool(oldTip, newBlockNode);
+            
+            //remove old blocks from blockchain, this frees the bucket the new height maps to
+            updateBlockNodes();
         }
+        indexBlockNode(newBlockNode);
         
-        //remove old blocks from blockchain
-        updateBlockNodes();
+        //the block is in the chain now, saving the utxo set can no longer fail it
+        if(newTip && snapshotFile != null && maxHeight % snapshotInterval == 0){
+            scheduleSnapshot(newBlockNode);
+        }
         
         return true;
     }
     
+    //hand node's utxo set to the snapshot executor, a delta mode tip pool is advanced in place so it is
+    //copied first, a persistent pool copy only shares the map
+    private void scheduleSnapshot(BlockNode node){
+        Path file = snapshotFile;
+        byte[] hash = node.getHash();
+        int height = node.getHeight();
+        UTXOPool pool = new UTXOPool(getNodeUtxoPool(node));
+        try {
+            lastSnapshot = snapshotExecutor.submit(() -> {
+                try {
+                    UTXOSnapshot.write(file, hash, height, pool);
+                    snapshotFailure = null;
+                } catch(IOException e){
+                    snapshotFailure = e;
+                } catch(RuntimeException e){
+                    snapshotFailure = new IOException("could not save the utxo set at height " + height, e);
+                }
+            });
+        } catch(RejectedExecutionException e){
+            snapshotFailure = new IOException("snapshot executor refused the utxo set at height " + height, e);
+        }
+    }
+    
+    private void storeBlock(Block b){
+        try {
+            blockStore.append(b);
+        } catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+    
     public boolean isGenesisBlock(Block b){
         if(b.getPrevBlockHash() == null){
             return true;
@@ -216,49 +486,294 @@ public class BlockChain {
         
     }
 
-    /** Add a transaction to the transaction pool */
-    public void addTransaction(Transaction tx) {
-        // IMPLEMENT THIS
+    /**
+     * Add a transaction to the transaction pool if it is valid on top of the max height block,
+     * counting outputs of transactions already in the pool as spendable.
+     * 
+     * @return true if the transaction is in the pool afterwards
+     */
+    public boolean addTransaction(Transaction tx) {
+        if(tx == null){
+            return false;
+        }
+        tx.ensureFinalized();
+        if(txPool.contains(tx.getHash())){
+            return true;
+        }
+        //a double spend of a pooled tx is refused before any signature work
+        if(txPool.hasConflict(tx)){
+            return false;
+        }
+        
+        //validate against the tip pool plus the unconfirmed outputs this tx spends
+        UTXOPoolOverlay view = new UTXOPoolOverlay(maxUtxoPool);
+        for(Transaction.Input in : tx.getInputs()){
+            if(in.prevTxHash == null){
+                return false;
+            }
+            if(view.contains(in.prevTxHash, in.outputIndex)){
+                continue;
+            }
+            Transaction parent = txPool.getTransaction(in.prevTxHash);
+            Transaction.Output parentOutput = parent == null || in.outputIndex < 0 ? null : parent.getOutput(in.outputIndex);
+            if(parentOutput == null){
+                return false;
+            }
+            view.addUTXO(new OutPoint(parent.getHash(), in.outputIndex), parentOutput);
+        }
+        TxHandler handler = new TxHandler(view);
+        //valid signatures land in the cache, so mining this tx later skips verifying them again
+        handler.setSignatureCache(signatureCache);
+        if(!handler.isValidTx(tx)){
+            return false;
+        }
         
+        //the handler has checked that these sums fit
+        long fee = 0;
+        for(Transaction.Input in : tx.getInputs()){
+            fee += view.getValue(in.prevTxHash, in.outputIndex);
+        }
+        for(Transaction.Output out : tx.getOutputs()){
+            fee -= out.value;
+        }
         //tx pool is used by TxHandler to process all new txs
-        txPool.addTransaction(tx);
+        return txPool.addTransaction(tx, fee);
+    }
+    
+    
+    //Delta mode: turn the overlays validated for the new tip into its pool. If they sit on the old tip's pool,
+    //which the old tip is about to give up, write them into it in place, otherwise build a copy
+    private UTXOPool advanceTipPool(UTXOPoolOverlay blockChanges){
+        UTXOPool bottom = blockChanges;
+        while(bottom instanceof UTXOPoolOverlay){
+            bottom = ((UTXOPoolOverlay) bottom).getBase();
+        }
+        if(bottom != maxHeightBlockNode.getNodeUtxoPool() || maxHeightBlockNode.getParent() == null){
+            //the old tip is a root and keeps its pool, or the overlays sit on some other root's pool
+            return new UTXOPool(blockChanges);
+        }
+        UTXOPool pool = blockChanges;
+        while(pool instanceof UTXOPoolOverlay){
+            UTXOPoolOverlay overlay = (UTXOPoolOverlay) pool;
+            overlay.commit();
+            pool = overlay.getBase();
+        }
+        return pool;
+    }
+    
+    //Move the txpool from oldTip to newTip, walking both back to their common ancestor
+    //only the blocks between the ancestor and the two tips are touched, not the whole pool
+    private void updateTxPool(BlockNode oldTip, BlockNode newTip){
+        ArrayList<BlockNode> disconnected = new ArrayList<>();
+        ArrayList<BlockNode> connected = new ArrayList<>();
+        BlockNode oldSide = oldTip;
+        BlockNode newSide = newTip;
+        while(oldSide != newSide){
+            if(oldSide == null || (newSide != null && newSide.getHeight() > oldSide.getHeight())){
+                connected.add(newSide);
+                newSide = newSide.getParent();
+            } else {
+                disconnected.add(oldSide);
+                oldSide = oldSide.getParent();
+            }
+        }
         
+        //remove confirmed txs first, along with pooled double spends of them and their descendants
+        for(int i = connected.size() - 1; i >= 0; i--){
+            txPool.removeConfirmed(connected.get(i).getBlock().getTransactions());
+        }
+        //put abandoned txs back, anything the new branch already spent fails validation against the new tip
+        HashMap<Hash256, Transaction> abandoned = new HashMap<>();
+        ArrayList<Transaction> order = new ArrayList<>();
+        for(int i = disconnected.size() - 1; i >= 0; i--){
+            for(Transaction tx : disconnected.get(i).getBlock().getTransactions()){
+                abandoned.put(new Hash256(tx.getHash()), tx);
+                order.add(tx);
+            }
+        }
+        for(Transaction tx : order){
+            readdWithParents(tx, abandoned);
+        }
     }
     
+    //Re-add tx after any of its parents still waiting in abandoned, since a block may list a child first
+    private void readdWithParents(Transaction tx, HashMap<Hash256, Transaction> abandoned){
+        ArrayDeque<Transaction> stack = new ArrayDeque<>();
+        if(abandoned.remove(hashProbe.set(tx.getHash())) == null){
+            return;
+        }
+        stack.push(tx);
+        while(!stack.isEmpty()){
+            Transaction top = stack.peek();
+            Transaction parent = null;
+            for(Transaction.Input in : top.getInputs()){
+                if(in.prevTxHash != null){
+                    parent = abandoned.remove(hashProbe.set(in.prevTxHash));
+                    if(parent != null){
+                        break;
+                    }
+                }
+            }
+            if(parent != null){
+                stack.push(parent);
+            } else {
+                addTransaction(stack.pop());
+            }
+        }
+    }
     
-    //Remove older BlockNodes from current array based on height
+    //Remove older BlockNodes by dropping every height bucket that fell out of the window
     public void updateBlockNodes(){
-        BlockNode maxHeightBlockNode = getMaxHeightBlockNode();
         int minimumHeight = maxHeightBlockNode.getHeight() - CUT_OFF_AGE;
-        ArrayList<BlockNode> removableBlocks = new ArrayList<>();
-        if(minimumHeight > 0){
-            for(BlockNode b: currentBlockChain){
-                if(b.getHeight() < minimumHeight){
-                    removableBlocks.add(b);
+        while(minRetainedHeight < minimumHeight){
+            ArrayList<BlockNode> bucket = heightBuckets.get(minRetainedHeight % heightBuckets.size());
+            promoteChildren(bucket);
+            for(int i = 0; i < bucket.size(); i++){
+                pruneBlockNode(bucket.get(i));
+            }
+            bucket.clear();
+            minRetainedHeight++;
+        }
+    }
+    
+    //Delta mode: the children of the roots in bucket become roots and a root must hold a pool to roll from.
+    //the child on the tip's branch takes over the one full root pool, rolled forward in place, every other
+    //child gets an overlay on it holding only what its branch changed, so a fork never copies the pool
+    private void promoteChildren(ArrayList<BlockNode> bucket){
+        boolean needPools = false;
+        for(BlockNode node : bucket){
+            for(BlockNode child : node.children){
+                needPools |= child.getNodeUtxoPool() == null;
+            }
+        }
+        if(!needPools){
+            return;
+        }
+        
+        //what each root changed from the full pool, taken before that pool is rolled forward
+        UTXOPool rootPool = null;
+        HashMap<BlockNode, UTXODelta> rootChanges = new HashMap<>();
+        for(BlockNode node : bucket){
+            UTXOPool pool = node.getNodeUtxoPool();
+            if(pool instanceof UTXOPoolOverlay){
+                rootChanges.put(node, ((UTXOPoolOverlay) pool).toDelta());
+            } else {
+                rootPool = pool;
+                rootChanges.put(node, new UTXODelta());
+            }
+        }
+        
+        BlockNode main = maxHeightBlockNode;
+        while(main.getHeight() > minRetainedHeight + 1){
+            main = main.getParent();
+        }
+        UTXODelta mainRootChanges = rootChanges.get(main.getParent());
+        UTXOPool mainPool = main.getNodeUtxoPool();
+        if(mainPool == null){
+            mainPool = rootPool;
+            mainRootChanges.applyTo(mainPool);
+            main.getNodeDelta().applyTo(mainPool);
+            main.setNodeUtxoPool(mainPool);
+        }
+        for(BlockNode node : bucket){
+            for(BlockNode child : node.children){
+                if(child.getNodeUtxoPool() != null){
+                    continue;
                 }
+                //back from the main child to the full pool's root, then along this child's branch
+                UTXOPoolOverlay overlay = new UTXOPoolOverlay(mainPool);
+                main.getNodeDelta().undoFrom(overlay);
+                mainRootChanges.undoFrom(overlay);
+                rootChanges.get(node).applyTo(overlay);
+                child.getNodeDelta().applyTo(overlay);
+                child.setNodeUtxoPool(overlay);
             }
         }
-        for(BlockNode b: removableBlocks){
-            currentBlockChain.remove(b);
+    }
+    
+    //unlink a pruned node and release its pool so the memory can be reclaimed right away
+    private void pruneBlockNode(BlockNode node){
+        blockIndex.remove(node.indexKey);
+        for(int i = 0; i < node.children.size(); i++){
+            node.children.get(i).parent = null;
         }
+        node.setNodeUtxoPool(null);
+        node.children.clear();
+        node.parent = null;
+    }
+    
+    /**
+     * Get a Merkle proof that the transaction with hash {@code txHash} is in the retained block
+     * with hash {@code blockHash}, or null if the block is unknown or does not contain it
+     */
+    public MerkleProof getInclusionProof(byte[] blockHash, byte[] txHash){
+        BlockNode node = getBlockNodeFromHash(blockHash);
+        if(node == null)
+            return null;
+        return node.getBlock().getMerkleProof(txHash);
+    }
+    
+    /** Check that {@code proof} shows {@code txHash} in a block this chain holds */
+    public boolean verifyInclusion(byte[] blockHash, byte[] txHash, MerkleProof proof){
+        return proof != null && getBlockNodeFromHash(blockHash) != null && proof.verify(blockHash, txHash);
+    }
+    
+    //Get the utxo pool after {@code node}, rolling deltas from the nearest materialized pool if needed
+    public UTXOPool getNodeUtxoPool(BlockNode node){
+        if(node.getNodeUtxoPool() != null)
+            return node.getNodeUtxoPool();
+        
+        //walk up from the node and from the tip until they meet or the node reaches a root pool
+        ArrayList<BlockNode> forward = new ArrayList<>();
+        ArrayList<BlockNode> back = new ArrayList<>();
+        BlockNode tipSide = maxHeightBlockNode;
+        BlockNode nodeSide = node;
+        UTXOPool pool = null;
+        while(tipSide != nodeSide){
+            if(nodeSide.getNodeUtxoPool() != null){
+                pool = new UTXOPoolOverlay(nodeSide.getNodeUtxoPool());
+                back.clear();
+                break;
+            }
+            if(tipSide == null || nodeSide.getHeight() > tipSide.getHeight()){
+                forward.add(nodeSide);
+                nodeSide = nodeSide.getParent();
+                if(nodeSide == null)
+                    return null;
+            } else {
+                back.add(tipSide);
+                tipSide = tipSide.getParent();
+            }
+        }
+        if(pool == null){
+            //roll an overlay instead of copying, its cost is the deltas walked and not the pool size
+            pool = new UTXOPoolOverlay(maxHeightBlockNode.getNodeUtxoPool());
+        }
+        for(int i = 0; i < back.size(); i++){
+            back.get(i).getNodeDelta().undoFrom(pool);
+        }
+        for(int i = forward.size() - 1; i >= 0; i--){
+            forward.get(i).getNodeDelta().applyTo(pool);
+        }
+        return pool;
     }
     
     //make it easy to get maxHeightBlockNode
     public BlockNode getMaxHeightBlockNode(){
-        BlockNode maxHeightBlockNode = getBlockNodeFromHash(getMaxHeightBlock().getHash());
         return maxHeightBlockNode;
     }
     
-    //Get BlockNode from current BlockNode array
+    //Get BlockNode from the block index, null if it is unknown or pruned
     public BlockNode getBlockNodeFromHash(byte[] blockHash){
-        
-        for(BlockNode b: currentBlockChain){
-            if(Arrays.equals(b.getHash(), blockHash)){
-                return b;
-            } 
-        }
-        return null;
+        if(blockHash == null)
+            return null;
+        return blockIndex.get(hashProbe.set(blockHash));
     }
     
+    private void indexBlockNode(BlockNode node){
+        node.indexKey = new Hash256(node.getHash());
+        blockIndex.put(node.indexKey, node);
+        heightBuckets.get(node.getHeight() % heightBuckets.size()).add(node);
+    }
     
 }
\ No newline at end of file
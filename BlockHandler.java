@@ -3,12 +3,18 @@ import java.security.PublicKey;
 
 public class BlockHandler {
     private BlockChain blockChain;
+    private TxSelector txSelector = new TxSelector();
 
     /** assume blockChain has the genesis block */
     public BlockHandler(BlockChain blockChain) {
         this.blockChain = blockChain;
     }
 
+    /** sets the selector that picks the highest-fee transactions for {@link #createBlock} */
+    public void setTxSelector(TxSelector txSelector) {
+        this.txSelector = txSelector;
+    }
+
     /**
      * add {@code block} to the block chain if it is valid.
      * 
@@ -28,7 +34,8 @@ public class BlockHandler {
         UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
         TransactionPool txPool = blockChain.getTransactionPool();
         TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
+        handler.setSignatureCache(blockChain.getSignatureCache());
+        Transaction[] txs = txSelector.select(uPool, txPool.bestFirst());
         Transaction[] rTxs = handler.handleTxs(txs);
         for (int i = 0; i < rTxs.length; i++)
             current.addTransaction(rTxs[i]);
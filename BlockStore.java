@@ -0,0 +1,337 @@
+package blockchain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * An append-only log of blocks in memory-mapped segment files, with an in-memory index from
+ * block hash to the record's segment and offset. Blocks are read back as {@link BlockView}s over
+ * the mapped bytes, so nothing is copied until a field is used.
+ *
+ * <p>
+ * A segment file {@code blocks-NNNNN.dat} has a fixed size. Records are appended from its start,
+ * each one the 32 byte block hash followed by the {@link WireFormat} encoding of the block. When
+ * the next record does not fit, the segment is sealed: the hash and offset of every record are
+ * written at the end of the file, followed by a trailer
+ *
+ * <pre>
+ *   int record count, int end of the records, long {@link #MAGIC}
+ * </pre>
+ *
+ * Opening a store reads the footers of sealed segments instead of the records. The one segment
+ * still being appended to has no footer; its records are walked by their stored hashes and
+ * length prefixes, and a torn record left by a crash ends the walk and is cleared for the next
+ * append. No block is hashed again either way.
+ *
+ * <p>
+ * {@link #append} forces the record it wrote to the segment file before it returns, so a block
+ * the store has accepted survives a crash; only a record a crash interrupts can be torn.
+ *
+ * <p>
+ * Not thread safe. Views returned by {@link #get} stay valid after the store is closed.
+ */
+public class BlockStore implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** marks a sealed segment, "BLKSTORE" in ASCII */
+    public static final long MAGIC = 0x424C4B53544F5245L;
+
+    private static final int ENTRY_SIZE = Hash256.SIZE + 4;
+    private static final int TRAILER_SIZE = 4 + 4 + 8;
+    private static final String PREFIX = "blocks-";
+    private static final String SUFFIX = ".dat";
+
+    private static final class Segment {
+        final int number;
+        final MappedByteBuffer buf;
+        final int capacity;
+        /** offset after the last record */
+        int end;
+        int count;
+        boolean sealed;
+
+        Segment(int number, MappedByteBuffer buf) {
+            this.number = number;
+            this.buf = buf;
+            capacity = buf.capacity();
+        }
+
+        boolean fits(int recordSize) {
+            return (long) end + recordSize + (long) (count + 1) * ENTRY_SIZE + TRAILER_SIZE <= capacity;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentSize;
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    /** (segment position in {@code segments} << 32) | record offset, per block hash */
+    private final HashMap<Hash256, Long> index = new HashMap<Hash256, Long>();
+    private final Hash256 hashProbe = new Hash256(new byte[0]);
+
+    /** Opens or creates the store in directory {@code dir} with the default segment size */
+    public BlockStore(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens or creates the store in directory {@code dir}. New segments are {@code segmentSize}
+     * bytes, or larger for a block that does not fit in one; existing segments keep their size.
+     */
+    public BlockStore(Path dir, int segmentSize) throws IOException {
+        if (segmentSize < ENTRY_SIZE + TRAILER_SIZE)
+            throw new IllegalArgumentException("segment size " + segmentSize + " is too small");
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        TreeMap<Integer, Path> files = new TreeMap<Integer, Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // not a segment of this store
+                }
+            }
+        }
+        for (Integer number : files.keySet())
+            load(number, files.get(number));
+        // only the last segment is appended to, seal any other one a crash left open
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (!segments.get(i).sealed)
+                seal(segments.get(i));
+        }
+    }
+
+    /** @return the number of stored blocks */
+    public int size() {
+        return index.size();
+    }
+
+    /** @return true if the block with hash {@code blockHash} is stored */
+    public boolean contains(byte[] blockHash) {
+        return blockHash != null && index.containsKey(hashProbe.set(blockHash));
+    }
+
+    /**
+     * Appends {@code block}, which must be finalized, unless it is already stored. The record is
+     * on disk when this returns.
+     *
+     * @return true if the block was appended, false if it was already stored
+     */
+    public boolean append(Block block) throws IOException {
+        byte[] hash = block.getHash();
+        if (hash == null || hash.length != Hash256.SIZE)
+            throw new IllegalArgumentException("block is not finalized");
+        if (contains(hash))
+            return false;
+        int recordSize = Hash256.SIZE + WireFormat.encodedSize(block);
+        Segment s = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (s == null || s.sealed || !s.fits(recordSize)) {
+            if (s != null && !s.sealed)
+                seal(s);
+            s = create(s == null ? 0 : s.number + 1, recordSize);
+        }
+        ByteBuffer dst = s.buf.duplicate();
+        dst.position(s.end);
+        dst.put(hash);
+        WireFormat.encode(block, dst);
+        s.buf.force(s.end, recordSize);
+        index.put(new Hash256(hash), location(segments.size() - 1, s.end));
+        s.end += recordSize;
+        s.count++;
+        return true;
+    }
+
+    /** @return a view of the stored block with hash {@code blockHash}, or null if it is not stored */
+    public BlockView get(byte[] blockHash) {
+        if (blockHash == null)
+            return null;
+        Long loc = index.get(hashProbe.set(blockHash));
+        if (loc == null)
+            return null;
+        ByteBuffer src = segments.get((int) (loc >>> 32)).buf.asReadOnlyBuffer();
+        src.position((int) (long) loc + Hash256.SIZE);
+        return WireFormat.decodeBlock(src);
+    }
+
+    /** @return the stored block with hash {@code blockHash} fully decoded, or null if it is not stored */
+    public Block getBlock(byte[] blockHash) {
+        BlockView view = get(blockHash);
+        return view == null ? null : view.toBlock();
+    }
+
+    /**
+     * @return the hashes of the blocks appended after the block with hash {@code blockHash}, in
+     *         the order they were appended, or null if that block is not stored
+     */
+    public ArrayList<byte[]> getHashesAfter(byte[] blockHash) {
+        Long loc = blockHash == null ? null : index.get(hashProbe.set(blockHash));
+        if (loc == null)
+            return null;
+        ArrayList<byte[]> hashes = new ArrayList<byte[]>();
+        int first = (int) (loc >>> 32);
+        int off = (int) (long) loc;
+        for (int i = first; i < segments.size(); i++) {
+            Segment s = segments.get(i);
+            if (i > first)
+                off = 0;
+            else
+                off += Hash256.SIZE + 4 + s.buf.getInt(off + Hash256.SIZE);
+            ByteBuffer src = s.buf.asReadOnlyBuffer();
+            while (off < s.end) {
+                byte[] hash = new byte[Hash256.SIZE];
+                src.position(off);
+                src.get(hash);
+                hashes.add(hash);
+                off += Hash256.SIZE + 4 + s.buf.getInt(off + Hash256.SIZE);
+            }
+        }
+        return hashes;
+    }
+
+    /** Forces the open segment to its file; {@link #append} already forces each record */
+    public void flush() {
+        for (Segment s : segments) {
+            if (!s.sealed)
+                s.buf.force();
+        }
+    }
+
+    public void close() {
+        flush();
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private Path path(int number) {
+        return dir.resolve(String.format("%s%05d%s", PREFIX, number, SUFFIX));
+    }
+
+    private Segment create(int number, int recordSize) throws IOException {
+        long capacity = Math.max(segmentSize, (long) recordSize + ENTRY_SIZE + TRAILER_SIZE);
+        if (capacity > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("block of " + recordSize + " bytes is too large to store");
+        MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(path(number), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        Segment s = new Segment(number, buf);
+        segments.add(s);
+        return s;
+    }
+
+    private void load(int number, Path file) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (ch.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is larger than a segment can be");
+            buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+        }
+        Segment s = new Segment(number, buf);
+        int position = segments.size();
+        segments.add(s);
+        if (readFooter(s, position))
+            return;
+        // no footer, walk the records up to the first one that is not whole
+        int off = 0;
+        byte[] hash = new byte[Hash256.SIZE];
+        while (s.capacity - off >= Hash256.SIZE + 4) {
+            int length = buf.getInt(off + Hash256.SIZE);
+            if (length == 0)
+                return;
+            if (length < 0 || length > s.capacity - off - Hash256.SIZE - 4 || !s.fits(Hash256.SIZE + 4 + length)
+                    || !decodes(buf, off + Hash256.SIZE)) {
+                // a torn record, clear it so that later appends leave no stale bytes behind
+                clear(buf, off, s.capacity);
+                return;
+            }
+            int recordSize = Hash256.SIZE + 4 + length;
+            ByteBuffer src = buf.duplicate();
+            src.position(off);
+            src.get(hash);
+            index.putIfAbsent(new Hash256(hash), location(position, off));
+            off += recordSize;
+            s.end = off;
+            s.count++;
+        }
+    }
+
+    private static boolean decodes(ByteBuffer buf, int off) {
+        ByteBuffer src = buf.duplicate();
+        src.position(off);
+        try {
+            WireFormat.decodeBlock(src);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void clear(ByteBuffer buf, int from, int to) {
+        ByteBuffer dst = buf.duplicate();
+        dst.position(from);
+        byte[] zeros = new byte[Math.min(8192, Math.max(0, to - from))];
+        while (dst.position() < to)
+            dst.put(zeros, 0, Math.min(zeros.length, to - dst.position()));
+    }
+
+    /** @return true if {@code s} is sealed, after indexing the records listed in its footer */
+    private boolean readFooter(Segment s, int position) {
+        MappedByteBuffer buf = s.buf;
+        if (s.capacity < TRAILER_SIZE || buf.getLong(s.capacity - 8) != MAGIC)
+            return false;
+        int count = buf.getInt(s.capacity - TRAILER_SIZE);
+        int end = buf.getInt(s.capacity - TRAILER_SIZE + 4);
+        if (count < 0 || count > (s.capacity - TRAILER_SIZE) / ENTRY_SIZE)
+            return false;
+        int footer = s.capacity - TRAILER_SIZE - count * ENTRY_SIZE;
+        if (end < 0 || end > footer)
+            return false;
+        ByteBuffer src = buf.duplicate();
+        src.position(footer);
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[Hash256.SIZE];
+            src.get(hash);
+            index.putIfAbsent(new Hash256(hash), location(position, src.getInt()));
+        }
+        s.end = end;
+        s.count = count;
+        s.sealed = true;
+        return true;
+    }
+
+    /** Writes the footer of {@code s} from its records' stored hashes and makes it durable */
+    private void seal(Segment s) {
+        MappedByteBuffer buf = s.buf;
+        ByteBuffer dst = buf.duplicate();
+        dst.position(s.capacity - TRAILER_SIZE - s.count * ENTRY_SIZE);
+        ByteBuffer src = buf.duplicate();
+        int off = 0;
+        for (int i = 0; i < s.count; i++) {
+            src.limit(off + Hash256.SIZE).position(off);
+            dst.put(src);
+            dst.putInt(off);
+            off += Hash256.SIZE + 4 + buf.getInt(off + Hash256.SIZE);
+        }
+        dst.putInt(s.count);
+        dst.putInt(s.end);
+        dst.putLong(MAGIC);
+        buf.force();
+        s.sealed = true;
+    }
+}
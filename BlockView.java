@@ -0,0 +1,124 @@
+package blockchain;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * A block read in place from its {@link WireFormat} encoding. Decoding only walks the length
+ * prefixes of the transactions; each transaction is decoded into a {@link TransactionView} the
+ * first time it is asked for.
+ */
+public final class BlockView {
+
+    /** the whole encoding, length prefix included */
+    private final ByteBuffer buf;
+    private final byte[] prevBlockHash;
+    /** where each transaction's encoding starts in {@code buf}, the coinbase first */
+    private final int[] offsets;
+    private final TransactionView[] views;
+    private byte[] hash;
+
+    BlockView(ByteBuffer buf) {
+        this.buf = buf;
+        if (buf.limit() < 4 + 2)
+            throw new IllegalArgumentException("truncated block");
+        int prevLength = WireFormat.getLength(buf, 4);
+        int off = 6 + Math.max(0, prevLength);
+        if (off + 4 > buf.limit())
+            throw new IllegalArgumentException("truncated block");
+        if (prevLength < 0) {
+            prevBlockHash = null;
+        } else {
+            prevBlockHash = new byte[prevLength];
+            ByteBuffer src = buf.duplicate();
+            src.position(6);
+            src.get(prevBlockHash);
+        }
+        int count = buf.getInt(off);
+        off += 4;
+        // every transaction takes at least its fixed header, which bounds a corrupt count
+        if (count < 1 || count > (buf.limit() - off) / WireFormat.TX_FIXED_HEADER)
+            throw new IllegalArgumentException("malformed transaction count");
+        offsets = new int[count];
+        ByteBuffer walk = buf.duplicate();
+        walk.position(off);
+        for (int i = 0; i < count; i++) {
+            offsets[i] = walk.position();
+            WireFormat.take(walk);
+        }
+        if (walk.hasRemaining())
+            throw new IllegalArgumentException("trailing bytes after the last transaction");
+        views = new TransactionView[count];
+    }
+
+    /** @return a copy of the hash of the previous block, or null */
+    public byte[] getPrevBlockHash() {
+        return prevBlockHash == null ? null : prevBlockHash.clone();
+    }
+
+    /** @return the number of transactions, not counting the coinbase */
+    public int numTransactions() {
+        return offsets.length - 1;
+    }
+
+    public TransactionView getCoinbase() {
+        return view(0);
+    }
+
+    public TransactionView getTransaction(int index) {
+        if (index < 0 || index >= offsets.length - 1)
+            throw new IndexOutOfBoundsException("transaction " + index + " of " + (offsets.length - 1));
+        return view(index + 1);
+    }
+
+    /** @return the number of bytes of the encoding */
+    public int encodedSize() {
+        return buf.limit();
+    }
+
+    /** @return a read-only view of the whole encoding */
+    public ByteBuffer encoded() {
+        return buf.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the hash of the block, computed on first use over the Merkle root of the hashes of
+     *         the encoded transactions, as {@link Block#finalize()} would
+     */
+    public byte[] getHash() {
+        if (hash == null) {
+            MerkleTree tree = new MerkleTree();
+            for (int i = 0; i < offsets.length; i++)
+                tree.append(view(i).getHash());
+            MessageDigest md = Crypto.sha256();
+            if (prevBlockHash != null)
+                md.update(prevBlockHash);
+            md.update(tree.getRoot());
+            hash = md.digest();
+        }
+        return hash;
+    }
+
+    /**
+     * @return the full block, with every transaction decoded and the block finalized
+     * @throws IllegalArgumentException if an address is not a valid RSA public key
+     */
+    public Block toBlock() {
+        Block block = new Block(getPrevBlockHash(), view(0).toTransaction());
+        for (int i = 1; i < offsets.length; i++)
+            block.addTransaction(view(i).toTransaction());
+        block.finalize();
+        return block;
+    }
+
+    private TransactionView view(int i) {
+        TransactionView view = views[i];
+        if (view == null) {
+            ByteBuffer src = buf.duplicate();
+            src.position(offsets[i]);
+            view = WireFormat.decodeTransaction(src);
+            views[i] = view;
+        }
+        return view;
+    }
+}
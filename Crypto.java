@@ -1,11 +1,76 @@
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.BitSet;
 
 public class Crypto {
 
+    /**
+     * One SHA256withRSA engine per thread. The engine stays initialized with the last key it
+     * verified against, so consecutive checks under the same key skip key parsing entirely.
+     */
+    private static final class Verifier {
+        private final Signature sig;
+        private PublicKey initializedKey;
+
+        Verifier() {
+            try {
+                sig = Signature.getInstance("SHA256withRSA");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+            if (pubKey == null || message == null || signature == null)
+                return false;
+            try {
+                if (pubKey != initializedKey) {
+                    initializedKey = null;
+                    sig.initVerify(pubKey);
+                    initializedKey = pubKey;
+                }
+                sig.update(message);
+                return sig.verify(signature);
+            } catch (InvalidKeyException e) {
+                return false;
+            } catch (SignatureException e) {
+                // the engine state is unknown after a failure, re-initialize on next use
+                initializedKey = null;
+                return false;
+            }
+        }
+    }
+
+    private static final ThreadLocal<Verifier> VERIFIERS = new ThreadLocal<Verifier>() {
+        protected Verifier initialValue() {
+            return new Verifier();
+        }
+    };
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * @return this thread's SHA-256 digest, reset and ready for input. The instance is shared by
+     *         every caller on the thread, so finish one hash before starting another.
+     */
+    public static MessageDigest sha256() {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        return md;
+    }
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,24 +78,24 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
-        }
-        return false;
+        return VERIFIERS.get().verify(pubKey, message, signature);
+    }
 
+    /**
+     * Verifies {@code signatures[i]} over {@code messages[i]} under {@code pubKeys[i]} for every
+     * {@code i}, reusing this thread's engine across the whole batch.
+     *
+     * @return a bitset with bit {@code i} set iff the {@code i}th signature is valid
+     */
+    public static BitSet verifyAll(PublicKey[] pubKeys, byte[][] messages, byte[][] signatures) {
+        if (pubKeys.length != messages.length || pubKeys.length != signatures.length)
+            throw new IllegalArgumentException("batch arrays differ in length");
+        Verifier verifier = VERIFIERS.get();
+        BitSet valid = new BitSet(pubKeys.length);
+        for (int i = 0; i < pubKeys.length; i++) {
+            if (verifier.verify(pubKeys[i], messages[i], signatures[i]))
+                valid.set(i);
+        }
+        return valid;
     }
 }
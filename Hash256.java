@@ -0,0 +1,121 @@
+package blockchain;
+
+/**
+ * A SHA-256 hash held as four big-endian longs with its hash code computed once, for use as a map
+ * key in place of a wrapped byte array. Construction reads the bytes without keeping or copying
+ * the array, and equality is four long comparisons. Shorter byte strings are zero padded and keep
+ * their length, so they never collide with a real 32 byte hash.
+ */
+public final class Hash256 {
+
+    /** the number of bytes in a SHA-256 hash */
+    public static final int SIZE = 32;
+
+    private long w0, w1, w2, w3;
+    private int length;
+    private int hash;
+
+    /**
+     * Creates the key for {@code bytes}
+     *
+     * @throws IllegalArgumentException if {@code bytes} is longer than {@link #SIZE} bytes
+     */
+    public Hash256(byte[] bytes) {
+        checkLength(bytes);
+        set(bytes);
+    }
+
+    /**
+     * Re-points this key at {@code bytes}. A class that looks a map up by hash bytes keeps one
+     * private probe, {@code new Hash256(new byte[0])}, and re-points it for each lookup instead of
+     * allocating a key; a probe is never stored in a map, since re-pointing it would change a
+     * stored key. {@link OutPoint#set} works the same way. A longer byte string is accepted here
+     * and simply matches no stored key.
+     */
+    Hash256 set(byte[] bytes) {
+        w0 = word(bytes, 0);
+        w1 = word(bytes, 1);
+        w2 = word(bytes, 2);
+        w3 = word(bytes, 3);
+        length = bytes.length;
+        hash = mix(w0, w1, w2, w3, length);
+        return this;
+    }
+
+    /** @return a copy of the hash bytes */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = byteAt(w0, w1, w2, w3, i);
+        return bytes;
+    }
+
+    /** @return true if this key was built from bytes equal to {@code bytes} */
+    public boolean matches(byte[] bytes) {
+        return bytes != null && bytes.length == length && bytes.length <= SIZE && w0 == word(bytes, 0)
+                && w1 == word(bytes, 1) && w2 == word(bytes, 2) && w3 == word(bytes, 3);
+    }
+
+    boolean sameWords(long x0, long x1, long x2, long x3, int len) {
+        return w0 == x0 && w1 == x1 && w2 == x2 && w3 == x3 && length == len;
+    }
+
+    long w0() {
+        return w0;
+    }
+
+    long w1() {
+        return w1;
+    }
+
+    long w2() {
+        return w2;
+    }
+
+    long w3() {
+        return w3;
+    }
+
+    int length() {
+        return length;
+    }
+
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof Hash256))
+            return false;
+        Hash256 h = (Hash256) other;
+        return hash == h.hash && h.sameWords(w0, w1, w2, w3, length);
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    static void checkLength(byte[] bytes) {
+        if (bytes.length > SIZE)
+            throw new IllegalArgumentException("hash longer than " + SIZE + " bytes");
+    }
+
+    /** @return bytes {@code 8*i} to {@code 8*i+7} of {@code bytes} as a big-endian long, zero padded */
+    static long word(byte[] bytes, int i) {
+        int off = i << 3;
+        int end = Math.min(off + 8, bytes.length);
+        long w = 0;
+        for (int j = off; j < off + 8; j++)
+            w = (w << 8) | (j < end ? bytes[j] & 0xFF : 0);
+        return w;
+    }
+
+    static byte byteAt(long w0, long w1, long w2, long w3, int i) {
+        long w = i < 8 ? w0 : i < 16 ? w1 : i < 24 ? w2 : w3;
+        return (byte) (w >>> (56 - ((i & 7) << 3)));
+    }
+
+    /** hash bytes are already uniform, so folding the words together is enough */
+    static int mix(long w0, long w1, long w2, long w3, int length) {
+        long x = w0 ^ Long.rotateLeft(w1, 16) ^ Long.rotateLeft(w2, 32) ^ Long.rotateLeft(w3, 48);
+        return (int) (x ^ (x >>> 32)) ^ length;
+    }
+}
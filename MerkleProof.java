@@ -0,0 +1,113 @@
+package blockchain;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Proof that a transaction hash is one of the leaves of a block's Merkle tree. It carries the
+ * position of the leaf, the number of leaves, the sibling hashes from the leaf up to the root and,
+ * once bound to a block, the block header, so it can be checked against nothing but the block
+ * hash in O(log n) hashes.
+ *
+ * <p>
+ * The position and the number of leaves fix the shape of the path: which levels have a sibling
+ * and on which side. A proof whose siblings do not fit that shape never verifies, and the
+ * transaction hash is tagged as a leaf before it is hashed up the path, so neither an interior
+ * node nor a leaf at another depth can pass for a transaction.
+ */
+public class MerkleProof {
+
+    private byte[][] siblings;
+    private int leafIndex;
+    private int leafCount;
+    private byte[] prevBlockHash;
+    private byte[] merkleRoot;
+
+    MerkleProof(byte[][] siblings, int leafIndex, int leafCount) {
+        this.siblings = siblings;
+        this.leafIndex = leafIndex;
+        this.leafCount = leafCount;
+    }
+
+    /** Binds the proof to the header of the block whose tree it was taken from */
+    void setHeader(byte[] prevBlockHash, byte[] merkleRoot) {
+        this.prevBlockHash = prevBlockHash;
+        this.merkleRoot = merkleRoot;
+    }
+
+    /** @return the sibling hashes, leaf level first */
+    public byte[][] getSiblings() {
+        return siblings;
+    }
+
+    /** @return the position of the leaf, from 0 */
+    public int getLeafIndex() {
+        return leafIndex;
+    }
+
+    /** @return the number of leaves of the tree the proof was taken from */
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * @return for each sibling, true if it is the left operand of its parent, or null if the
+     *         siblings do not fit the position and number of leaves
+     */
+    public boolean[] getSiblingOnLeft() {
+        if (leafIndex < 0 || leafIndex >= leafCount)
+            return null;
+        boolean[] left = new boolean[siblings.length];
+        int found = 0;
+        for (int index = leafIndex, n = leafCount; n > 1; index >>= 1, n = (n + 1) >> 1) {
+            int sibling = index ^ 1;
+            if (sibling >= n)
+                continue;
+            if (found == siblings.length)
+                return null;
+            left[found++] = sibling < index;
+        }
+        return found == siblings.length ? left : null;
+    }
+
+    public byte[] getPrevBlockHash() {
+        return prevBlockHash;
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    /**
+     * @return the root obtained by hashing the leaf node of {@code txHash} up the proof path, or
+     *         null if the siblings do not fit the position and number of leaves
+     */
+    public byte[] computeRoot(byte[] txHash) {
+        boolean[] siblingOnLeft = getSiblingOnLeft();
+        if (siblingOnLeft == null)
+            return null;
+        byte[] node = MerkleTree.hashLeaf(txHash);
+        for (int i = 0; i < siblings.length; i++) {
+            node = siblingOnLeft[i] ? MerkleTree.hashPair(siblings[i], node)
+                    : MerkleTree.hashPair(node, siblings[i]);
+        }
+        return node;
+    }
+
+    /**
+     * @return true if {@code txHash} is the leaf at {@link #getLeafIndex()} of the Merkle tree
+     *         committed to by the block whose hash is {@code blockHash}
+     */
+    public boolean verify(byte[] blockHash, byte[] txHash) {
+        if (blockHash == null || txHash == null || merkleRoot == null)
+            return false;
+        byte[] root = computeRoot(txHash);
+        if (root == null || !Arrays.equals(root, merkleRoot))
+            return false;
+        MessageDigest md = Crypto.sha256();
+        if (prevBlockHash != null)
+            md.update(prevBlockHash);
+        md.update(merkleRoot);
+        return Arrays.equals(md.digest(), blockHash);
+    }
+}
@@ -0,0 +1,135 @@
+package blockchain;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A Merkle tree over 32 byte transaction hashes that is updated in place. Appending or replacing
+ * a leaf only rehashes the nodes on the path from that leaf to the root, O(log n) hashes.
+ *
+ * <p>
+ * The node of a leaf is {@code SHA-256(0x00 || leaf)} and an interior node is
+ * {@code SHA-256(0x01 || left || right)}. A node without a right sibling is promoted to the next
+ * level unchanged instead of being paired with itself. The prefixes keep a leaf from ever being
+ * taken for an interior node, so two different leaf lists never share a root.
+ */
+public class MerkleTree {
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    /**
+     * levels.get(0) holds the leaves, levels.get(1) their nodes, and the last level holds the root
+     * alone
+     */
+    private ArrayList<ArrayList<byte[]>> levels;
+
+    public MerkleTree() {
+        levels = new ArrayList<ArrayList<byte[]>>();
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    /** @return the number of leaves */
+    public int size() {
+        return levels.get(0).size();
+    }
+
+    /** @return the leaf at {@code index} */
+    public byte[] getLeaf(int index) {
+        return levels.get(0).get(index);
+    }
+
+    /** @return the root of the tree, or null if it has no leaves */
+    public byte[] getRoot() {
+        ArrayList<byte[]> top = levels.get(levels.size() - 1);
+        return top.isEmpty() ? null : top.get(0);
+    }
+
+    /** Adds {@code leaf} after the current last leaf */
+    public void append(byte[] leaf) {
+        ArrayList<byte[]> leaves = levels.get(0);
+        leaves.add(leaf);
+        updatePath(leaves.size() - 1);
+    }
+
+    /** Replaces the leaf at {@code index} with {@code leaf} */
+    public void set(int index, byte[] leaf) {
+        levels.get(0).set(index, leaf);
+        updatePath(index);
+    }
+
+    /** Removes every leaf */
+    public void clear() {
+        levels.clear();
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    /** @return the index of the first leaf equal to {@code leaf}, or -1 if there is none */
+    public int indexOf(byte[] leaf) {
+        ArrayList<byte[]> leaves = levels.get(0);
+        for (int i = 0; i < leaves.size(); i++) {
+            if (Arrays.equals(leaves.get(i), leaf))
+                return i;
+        }
+        return -1;
+    }
+
+    /** @return a proof that the leaf at {@code index} is under the current root */
+    public MerkleProof getProof(int index) {
+        int leafIndex = index;
+        ArrayList<byte[]> siblings = new ArrayList<byte[]>();
+        for (int level = 1; level < levels.size() - 1; level++) {
+            ArrayList<byte[]> nodes = levels.get(level);
+            int sibling = index ^ 1;
+            if (sibling < nodes.size())
+                siblings.add(nodes.get(sibling));
+            index >>= 1;
+        }
+        return new MerkleProof(siblings.toArray(new byte[siblings.size()][]), leafIndex, size());
+    }
+
+    /** @return {@code SHA-256(0x00 || leaf)} */
+    static byte[] hashLeaf(byte[] leaf) {
+        MessageDigest md = Crypto.sha256();
+        md.update(LEAF_PREFIX);
+        md.update(leaf);
+        return md.digest();
+    }
+
+    /** @return {@code SHA-256(0x01 || left || right)} */
+    static byte[] hashPair(byte[] left, byte[] right) {
+        MessageDigest md = Crypto.sha256();
+        md.update(NODE_PREFIX);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+
+    private void updatePath(int index) {
+        if (levels.size() == 1)
+            levels.add(new ArrayList<byte[]>());
+        setNode(1, index, hashLeaf(levels.get(0).get(index)));
+        int level = 1;
+        while (levels.get(level).size() > 1) {
+            ArrayList<byte[]> children = levels.get(level);
+            int left = index & ~1;
+            byte[] node = left + 1 < children.size()
+                    ? hashPair(children.get(left), children.get(left + 1))
+                    : children.get(left);
+            index >>= 1;
+            level++;
+            if (level == levels.size())
+                levels.add(new ArrayList<byte[]>());
+            setNode(level, index, node);
+        }
+    }
+
+    private void setNode(int level, int index, byte[] node) {
+        ArrayList<byte[]> nodes = levels.get(level);
+        if (index < nodes.size())
+            nodes.set(index, node);
+        else
+            nodes.add(node);
+    }
+}
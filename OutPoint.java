@@ -0,0 +1,142 @@
+package blockchain;
+
+/**
+ * A transaction output reference, the same (transaction hash, output index) pair as {@code UTXO},
+ * packed into primitive fields with its hash code computed once. It is the key the pools store;
+ * a structure that looks keys up by hash bytes keeps one private probe and re-points it with
+ * {@link #set} instead of allocating a key per lookup.
+ */
+public final class OutPoint {
+
+    private long w0, w1, w2, w3;
+    private int length;
+    private int index;
+    private int hash;
+
+    /** @throws IllegalArgumentException if {@code txHash} is longer than {@link Hash256#SIZE} bytes */
+    public OutPoint(byte[] txHash, int index) {
+        Hash256.checkLength(txHash);
+        set(txHash, index);
+    }
+
+    public OutPoint(Hash256 txHash, int index) {
+        set(txHash, index);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the hash of {@code utxo} is longer than
+     *         {@link Hash256#SIZE} bytes
+     */
+    public OutPoint(UTXO utxo) {
+        this(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    /**
+     * Re-points this key at output {@code index} of {@code txHash}. Only for private probe
+     * instances that are used to look up a map and are never stored in one. A hash longer than
+     * {@link Hash256#SIZE} bytes is accepted here and simply matches no stored key.
+     */
+    OutPoint set(byte[] txHash, int index) {
+        w0 = Hash256.word(txHash, 0);
+        w1 = Hash256.word(txHash, 1);
+        w2 = Hash256.word(txHash, 2);
+        w3 = Hash256.word(txHash, 3);
+        length = txHash.length;
+        this.index = index;
+        hash = mix();
+        return this;
+    }
+
+    /** Re-points this probe at output {@code index} of {@code txHash}, see {@link #set(byte[], int)} */
+    OutPoint set(Hash256 txHash, int index) {
+        w0 = txHash.w0();
+        w1 = txHash.w1();
+        w2 = txHash.w2();
+        w3 = txHash.w3();
+        length = txHash.length();
+        this.index = index;
+        hash = mix();
+        return this;
+    }
+
+    private int mix() {
+        return hash(w0, w1, w2, w3, length, index);
+    }
+
+    /** @return the hash code of the key with these fields, without building it */
+    static int hash(long w0, long w1, long w2, long w3, int length, int index) {
+        return Hash256.mix(w0, w1, w2, w3, length) * 31 + index;
+    }
+
+    long w0() {
+        return w0;
+    }
+
+    long w1() {
+        return w1;
+    }
+
+    long w2() {
+        return w2;
+    }
+
+    long w3() {
+        return w3;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /** @return a copy of the hash of the transaction this output belongs to */
+    public byte[] getTxHash() {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = Hash256.byteAt(w0, w1, w2, w3, i);
+        return bytes;
+    }
+
+    /** @return the index of the output in its transaction */
+    public int getIndex() {
+        return index;
+    }
+
+    /** @return this output reference as a {@code UTXO} */
+    public UTXO toUTXO() {
+        return new UTXO(getTxHash(), index);
+    }
+
+    /** @return an unshared copy, for storing a key that may be a probe */
+    OutPoint copy() {
+        return new OutPoint(this);
+    }
+
+    private OutPoint(OutPoint other) {
+        this(other.w0, other.w1, other.w2, other.w3, other.length, other.index);
+    }
+
+    /** Rebuilds a key from the words of a hash of {@code length} bytes */
+    OutPoint(long w0, long w1, long w2, long w3, int length, int index) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.length = length;
+        this.index = index;
+        hash = mix();
+    }
+
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof OutPoint))
+            return false;
+        OutPoint op = (OutPoint) other;
+        return hash == op.hash && index == op.index && w0 == op.w0 && w1 == op.w1 && w2 == op.w2
+                && w3 == op.w3 && length == op.length;
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,283 @@
+package blockchain;
+
+import java.util.ArrayList;
+
+/**
+ * An immutable hash array mapped trie from {@code OutPoint} to {@code Transaction.Output}. Every
+ * update returns a new map that shares all untouched branches with the map it was derived from,
+ * so a copy costs nothing and each {@code put} or {@code remove} only allocates the O(log32 n)
+ * nodes on the path to the changed entry.
+ */
+final class PersistentUTXOMap {
+
+    static final PersistentUTXOMap EMPTY = new PersistentUTXOMap(BitmapNode.EMPTY, 0);
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int MAX_SHIFT = 30;
+
+    private final Node root;
+    private final int size;
+
+    private PersistentUTXOMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /** @return the number of UTXOs in the map */
+    int size() {
+        return size;
+    }
+
+    /** @return the output mapped to {@code key}, or null if there is none */
+    Transaction.Output get(OutPoint key) {
+        Entry e = root.find(key, spread(key.hashCode()), 0);
+        return e == null ? null : e.value;
+    }
+
+    /** @return true if {@code key} is in the map */
+    boolean containsKey(OutPoint key) {
+        return root.find(key, spread(key.hashCode()), 0) != null;
+    }
+
+    /** @return a map that also maps {@code key} to {@code value} */
+    PersistentUTXOMap put(OutPoint key, Transaction.Output value) {
+        boolean[] added = new boolean[1];
+        Node newRoot = root.assoc(new Entry(key, spread(key.hashCode()), value), 0, added);
+        if (newRoot == root)
+            return this;
+        return new PersistentUTXOMap(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /** @return a map without {@code key} */
+    PersistentUTXOMap remove(OutPoint key) {
+        Node newRoot = root.without(key, spread(key.hashCode()), 0);
+        if (newRoot == root)
+            return this;
+        return new PersistentUTXOMap(newRoot == null ? BitmapNode.EMPTY : newRoot, size - 1);
+    }
+
+    /** Appends every key of the map to {@code out} */
+    void collectKeys(ArrayList<UTXO> out) {
+        root.collectKeys(out);
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+        final OutPoint key;
+        final int hash;
+        final Transaction.Output value;
+
+        Entry(OutPoint key, int hash, Transaction.Output value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+
+        boolean matches(OutPoint k, int h) {
+            return hash == h && key.equals(k);
+        }
+    }
+
+    private interface Node {
+        Entry find(OutPoint key, int hash, int shift);
+
+        Node assoc(Entry entry, int shift, boolean[] added);
+
+        /** @return the node without {@code key}, this if it is absent, or null if it becomes empty */
+        Node without(OutPoint key, int hash, int shift);
+
+        /** @return the only entry of this node if it holds exactly one entry and no children */
+        Entry singleEntry();
+
+        void collectKeys(ArrayList<UTXO> out);
+    }
+
+    /** Interior node; each slot holds either an {@code Entry} or a child {@code Node} */
+    private static final class BitmapNode implements Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] slots;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        public Entry find(OutPoint key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+                return null;
+            Object o = slots[index(bit)];
+            if (o instanceof Entry) {
+                Entry e = (Entry) o;
+                return e.matches(key, hash) ? e : null;
+            }
+            return ((Node) o).find(key, hash, shift + BITS);
+        }
+
+        public Node assoc(Entry entry, int shift, boolean[] added) {
+            int bit = 1 << ((entry.hash >>> shift) & MASK);
+            int idx = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, idx);
+                newSlots[idx] = entry;
+                System.arraycopy(slots, idx, newSlots, idx + 1, slots.length - idx);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, newSlots);
+            }
+            Object o = slots[idx];
+            Object replacement;
+            if (o instanceof Entry) {
+                Entry e = (Entry) o;
+                if (e.matches(entry.key, entry.hash)) {
+                    if (e.value == entry.value)
+                        return this;
+                    replacement = entry;
+                } else {
+                    added[0] = true;
+                    replacement = merge(e, entry, shift + BITS);
+                }
+            } else {
+                Node child = (Node) o;
+                Node newChild = child.assoc(entry, shift + BITS, added);
+                if (newChild == child)
+                    return this;
+                replacement = newChild;
+            }
+            Object[] newSlots = slots.clone();
+            newSlots[idx] = replacement;
+            return new BitmapNode(bitmap, newSlots);
+        }
+
+        public Node without(OutPoint key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+                return this;
+            int idx = index(bit);
+            Object o = slots[idx];
+            Object replacement;
+            if (o instanceof Entry) {
+                if (!((Entry) o).matches(key, hash))
+                    return this;
+                replacement = null;
+            } else {
+                Node child = (Node) o;
+                Node newChild = child.without(key, hash, shift + BITS);
+                if (newChild == child)
+                    return this;
+                if (newChild == null) {
+                    replacement = null;
+                } else {
+                    // pull a lone entry up so the trie stays as shallow as possible
+                    Entry single = newChild.singleEntry();
+                    replacement = single != null ? single : newChild;
+                }
+            }
+            if (replacement != null) {
+                Object[] newSlots = slots.clone();
+                newSlots[idx] = replacement;
+                return new BitmapNode(bitmap, newSlots);
+            }
+            if (slots.length == 1)
+                return null;
+            Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, idx);
+            System.arraycopy(slots, idx + 1, newSlots, idx, slots.length - idx - 1);
+            return new BitmapNode(bitmap & ~bit, newSlots);
+        }
+
+        public Entry singleEntry() {
+            if (slots.length == 1 && slots[0] instanceof Entry)
+                return (Entry) slots[0];
+            return null;
+        }
+
+        public void collectKeys(ArrayList<UTXO> out) {
+            for (Object o : slots) {
+                if (o instanceof Entry)
+                    out.add(((Entry) o).key.toUTXO());
+                else
+                    ((Node) o).collectKeys(out);
+            }
+        }
+    }
+
+    /** Leaf for keys whose 32 bit hashes are identical */
+    private static final class CollisionNode implements Node {
+        final Entry[] entries;
+
+        CollisionNode(Entry[] entries) {
+            this.entries = entries;
+        }
+
+        public Entry find(OutPoint key, int hash, int shift) {
+            for (Entry e : entries) {
+                if (e.matches(key, hash))
+                    return e;
+            }
+            return null;
+        }
+
+        public Node assoc(Entry entry, int shift, boolean[] added) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].matches(entry.key, entry.hash)) {
+                    if (entries[i].value == entry.value)
+                        return this;
+                    Entry[] newEntries = entries.clone();
+                    newEntries[i] = entry;
+                    return new CollisionNode(newEntries);
+                }
+            }
+            Entry[] newEntries = new Entry[entries.length + 1];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            newEntries[entries.length] = entry;
+            added[0] = true;
+            return new CollisionNode(newEntries);
+        }
+
+        public Node without(OutPoint key, int hash, int shift) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].matches(key, hash)) {
+                    if (entries.length == 1)
+                        return null;
+                    Entry[] newEntries = new Entry[entries.length - 1];
+                    System.arraycopy(entries, 0, newEntries, 0, i);
+                    System.arraycopy(entries, i + 1, newEntries, i, entries.length - i - 1);
+                    return new CollisionNode(newEntries);
+                }
+            }
+            return this;
+        }
+
+        public Entry singleEntry() {
+            return entries.length == 1 ? entries[0] : null;
+        }
+
+        public void collectKeys(ArrayList<UTXO> out) {
+            for (Entry e : entries)
+                out.add(e.key.toUTXO());
+        }
+    }
+
+    /** Builds the smallest subtree at {@code shift} that holds both {@code a} and {@code b} */
+    private static Node merge(Entry a, Entry b, int shift) {
+        if (shift > MAX_SHIFT)
+            return new CollisionNode(new Entry[] { a, b });
+        int fragA = (a.hash >>> shift) & MASK;
+        int fragB = (b.hash >>> shift) & MASK;
+        if (fragA == fragB)
+            return new BitmapNode(1 << fragA, new Object[] { merge(a, b, shift + BITS) });
+        Object[] slots = fragA < fragB ? new Object[] { a, b } : new Object[] { b, a };
+        return new BitmapNode((1 << fragA) | (1 << fragB), slots);
+    }
+}
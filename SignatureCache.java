@@ -0,0 +1,161 @@
+package blockchain;
+
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of successful signature checks, keyed by (transaction hash, input index).
+ * Each entry remembers the public key and a digest of the exact message and signature that were
+ * verified, so a lookup only counts as a hit when all of them match. Safe for concurrent use.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final class Key {
+        private final Hash256 txHash;
+        private final int index;
+        private final int hash;
+
+        Key(byte[] txHash, int index) {
+            this.txHash = new Hash256(txHash);
+            this.index = index;
+            hash = this.txHash.hashCode() * 31 + index;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key))
+                return false;
+            Key k = (Key) other;
+            return index == k.index && txHash.equals(k.txHash);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final PublicKey pubKey;
+        private final byte[] digest;
+
+        Entry(PublicKey pubKey, byte[] digest) {
+            this.pubKey = pubKey;
+            this.digest = digest;
+        }
+    }
+
+    private final LinkedHashMap<Key, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SignatureCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates a cache that holds at most {@code capacity} verified inputs */
+    public SignatureCache(final int capacity) {
+        entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return true if {@code signature} is a valid signature of {@code message} under
+     *         {@code pubKey}. Input {@code inputIndex} of transaction {@code txHash} is only
+     *         verified with {@link Crypto#verifySignature} if the same check has not succeeded
+     *         before; a successful result is remembered.
+     */
+    public boolean verify(byte[] txHash, int inputIndex, PublicKey pubKey, byte[] message,
+            byte[] signature) {
+        if (isVerified(txHash, inputIndex, pubKey, message, signature))
+            return true;
+        boolean valid = Crypto.verifySignature(pubKey, message, signature);
+        if (valid)
+            markVerified(txHash, inputIndex, pubKey, message, signature);
+        return valid;
+    }
+
+    /**
+     * @return true if exactly this check of input {@code inputIndex} of transaction
+     *         {@code txHash} has succeeded before. Counts as a hit or a miss.
+     */
+    public boolean isVerified(byte[] txHash, int inputIndex, PublicKey pubKey, byte[] message,
+            byte[] signature) {
+        if (txHash == null || txHash.length > Hash256.SIZE || pubKey == null || message == null
+                || signature == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        Entry cached;
+        synchronized (entries) {
+            cached = entries.get(new Key(txHash, inputIndex));
+        }
+        if (cached != null && cached.pubKey.equals(pubKey)
+                && Arrays.equals(cached.digest, digest(message, signature))) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /** Records that {@code signature} was verified as valid for input {@code inputIndex} */
+    public void markVerified(byte[] txHash, int inputIndex, PublicKey pubKey, byte[] message,
+            byte[] signature) {
+        if (txHash == null || txHash.length > Hash256.SIZE || pubKey == null || message == null
+                || signature == null)
+            return;
+        Entry entry = new Entry(pubKey, digest(message, signature));
+        synchronized (entries) {
+            entries.put(new Key(txHash, inputIndex), entry);
+        }
+    }
+
+    /** @return the number of lookups answered from the cache */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of lookups that had to verify the signature */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return the number of cached verification results */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /** Removes every cached result and resets the counters */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    private static byte[] digest(byte[] message, byte[] signature) {
+        MessageDigest md = Crypto.sha256();
+        // length prefix so the split between message and signature is part of the digest
+        int len = message.length;
+        md.update((byte) (len >>> 24));
+        md.update((byte) (len >>> 16));
+        md.update((byte) (len >>> 8));
+        md.update((byte) len);
+        md.update(message);
+        md.update(signature);
+        return md.digest();
+    }
+}
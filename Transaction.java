@@ -1,8 +1,6 @@
 package blockchain; 
 
-import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
@@ -10,6 +8,9 @@ import java.util.Arrays;
 
 public class Transaction {
 
+    /** the number of base units in one coin; every amount is a whole number of base units */
+    public static final long COIN = 100_000_000L;
+
     public class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
@@ -31,6 +32,7 @@ public class Transaction {
                 signature = null;
             else
                 signature = Arrays.copyOf(sig, sig.length);
+            invalidateHash();
         }
 
         public boolean equals(Object other) {
@@ -70,16 +72,62 @@ public class Transaction {
     }
 
     public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+        /** value of the output in base units, see {@link Transaction#COIN} */
+        public long value;
         /** the address or public key of the recipient */
         public PublicKey address;
 
-        public Output(double v, PublicKey addr) {
+        /** serialized form of {@code address}, rebuilt if the address is replaced */
+        private AddressEncoding encoding;
+
+        public Output(long v, PublicKey addr) {
             value = v;
             address = addr;
         }
 
+        private AddressEncoding encoding() {
+            AddressEncoding e = encoding;
+            if (e == null || e.key != address) {
+                e = new AddressEncoding(address);
+                encoding = e;
+            }
+            return e;
+        }
+
+        /** @return the number of bytes this output adds to the raw transaction */
+        int rawSize() {
+            AddressEncoding e = encoding();
+            return Long.SIZE / 8 + e.exponent.length + e.modulus.length;
+        }
+
+        /** Writes this output's raw bytes at {@code off} and returns the offset after them */
+        int writeRaw(byte[] dst, int off) {
+            AddressEncoding e = encoding();
+            off = putLong(dst, off, value);
+            System.arraycopy(e.exponent, 0, dst, off, e.exponent.length);
+            off += e.exponent.length;
+            System.arraycopy(e.modulus, 0, dst, off, e.modulus.length);
+            return off + e.modulus.length;
+        }
+
+        /** @return the length of the serialized public exponent */
+        int exponentLength() {
+            return encoding().exponent.length;
+        }
+
+        /** @return the length of the serialized modulus */
+        int modulusLength() {
+            return encoding().modulus.length;
+        }
+
+        /** Feeds this output's raw bytes to {@code md} */
+        void digestRaw(MessageDigest md) {
+            AddressEncoding e = encoding();
+            digestLong(md, value);
+            md.update(e.exponent);
+            md.update(e.modulus);
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -103,15 +151,30 @@ public class Transaction {
 
         public int hashCode() {
             int hash = 1;
-            hash = hash * 17 + (int) value * 10000;
+            hash = hash * 17 + Long.hashCode(value);
             hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
             hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
             return hash;
         }
     }
 
+    /** the big-endian exponent and modulus bytes of an RSA address, as they are serialized */
+    private static final class AddressEncoding {
+        final PublicKey key;
+        final byte[] exponent;
+        final byte[] modulus;
+
+        AddressEncoding(PublicKey key) {
+            this.key = key;
+            exponent = ((RSAPublicKey) key).getPublicExponent().toByteArray();
+            modulus = ((RSAPublicKey) key).getModulus().toByteArray();
+        }
+    }
+
     /** hash of the transaction, its unique id */
     private byte[] hash;
+    /** true when {@code hash} may not match the current contents */
+    private boolean hashDirty = true;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
     private boolean coinbase;
@@ -122,15 +185,27 @@ public class Transaction {
         coinbase = false;
     }
 
+    /**
+     * Copies {@code tx}. Inputs and outputs are copied too, so changing the copy through its
+     * methods marks the copy's hash stale and leaves {@code tx} alone.
+     */
     public Transaction(Transaction tx) {
-        hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
-        outputs = new ArrayList<Output>(tx.outputs);
+        hash = tx.hash == null ? null : tx.hash.clone();
+        hashDirty = tx.hashDirty;
+        inputs = new ArrayList<Input>(tx.inputs.size());
+        for (Input in : tx.inputs) {
+            Input copy = new Input(in.prevTxHash, in.outputIndex);
+            copy.signature = in.signature == null ? null : in.signature.clone();
+            inputs.add(copy);
+        }
+        outputs = new ArrayList<Output>(tx.outputs.size());
+        for (Output out : tx.outputs)
+            outputs.add(new Output(out.value, out.address));
         coinbase = false;
     }
 
     /** create a coinbase transaction of value {@code coin} and calls finalize on it */
-    public Transaction(double coin, PublicKey address) {
+    public Transaction(long coin, PublicKey address) {
         coinbase = true;
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
@@ -142,18 +217,26 @@ public class Transaction {
         return coinbase;
     }
 
+    /** Marks a decoded transaction as a coinbase, as the coinbase constructor would have */
+    void markCoinbase() {
+        coinbase = true;
+    }
+
     public void addInput(byte[] prevTxHash, int outputIndex) {
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
+        invalidateHash();
     }
 
-    public void addOutput(double value, PublicKey address) {
+    public void addOutput(long value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        invalidateHash();
     }
 
     public void removeInput(int index) {
         inputs.remove(index);
+        invalidateHash();
     }
 
     public void removeInput(UTXO ut) {
@@ -162,6 +245,7 @@ public class Transaction {
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
             if (u.equals(ut)) {
                 inputs.remove(i);
+                invalidateHash();
                 return;
             }
         }
@@ -169,36 +253,19 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
         byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
+        int size = (prevTxHash != null ? prevTxHash.length : 0) + Integer.SIZE / 8 + outputsRawSize();
+        byte[] sigD = new byte[size];
+        int off = 0;
+        if (prevTxHash != null) {
+            System.arraycopy(prevTxHash, 0, sigD, 0, prevTxHash.length);
+            off = prevTxHash.length;
         }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
+        off = putInt(sigD, off, in.outputIndex);
+        writeOutputsRaw(sigD, off);
         return sigD;
     }
 
@@ -207,54 +274,129 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+        byte[] tx = new byte[rawTxSize()];
+        writeRawTx(tx, 0);
+        return tx;
+    }
+
+    /** @return the exact length of {@link #getRawTx()} */
+    int rawTxSize() {
+        int size = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            Input in = inputs.get(i);
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            size += Integer.SIZE / 8;
+            if (in.signature != null)
+                size += in.signature.length;
+        }
+        return size + outputsRawSize();
+    }
+
+    /** Writes the raw transaction at {@code off} and returns the offset after it */
+    int writeRawTx(byte[] dst, int off) {
+        for (int i = 0; i < inputs.size(); i++) {
+            Input in = inputs.get(i);
+            if (in.prevTxHash != null) {
+                System.arraycopy(in.prevTxHash, 0, dst, off, in.prevTxHash.length);
+                off += in.prevTxHash.length;
+            }
+            off = putInt(dst, off, in.outputIndex);
+            if (in.signature != null) {
+                System.arraycopy(in.signature, 0, dst, off, in.signature.length);
+                off += in.signature.length;
+            }
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+        return writeOutputsRaw(dst, off);
+    }
+
+    private int outputsRawSize() {
+        int size = 0;
+        for (int i = 0; i < outputs.size(); i++)
+            size += outputs.get(i).rawSize();
+        return size;
+    }
+
+    private int writeOutputsRaw(byte[] dst, int off) {
+        for (int i = 0; i < outputs.size(); i++)
+            off = outputs.get(i).writeRaw(dst, off);
+        return off;
+    }
+
+    private static int putInt(byte[] dst, int off, int v) {
+        dst[off] = (byte) (v >>> 24);
+        dst[off + 1] = (byte) (v >>> 16);
+        dst[off + 2] = (byte) (v >>> 8);
+        dst[off + 3] = (byte) v;
+        return off + 4;
+    }
+
+    private static int putLong(byte[] dst, int off, long v) {
+        off = putInt(dst, off, (int) (v >>> 32));
+        return putInt(dst, off, (int) v);
+    }
+
+    private static void digestInt(MessageDigest md, int v) {
+        md.update((byte) (v >>> 24));
+        md.update((byte) (v >>> 16));
+        md.update((byte) (v >>> 8));
+        md.update((byte) v);
+    }
+
+    private static void digestLong(MessageDigest md, long v) {
+        digestInt(md, (int) (v >>> 32));
+        digestInt(md, (int) v);
+    }
+
+    /** Feeds the bytes of {@link #getRawTx()} to {@code md} without building the array */
+    void digestRawTx(MessageDigest md) {
+        for (int i = 0; i < inputs.size(); i++) {
+            Input in = inputs.get(i);
+            if (in.prevTxHash != null)
+                md.update(in.prevTxHash);
+            digestInt(md, in.outputIndex);
+            if (in.signature != null)
+                md.update(in.signature);
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        for (int i = 0; i < outputs.size(); i++)
+            outputs.get(i).digestRaw(md);
     }
 
+    /** Computes the hash of the transaction from its current contents */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
-        }
+        MessageDigest md = Crypto.sha256();
+        digestRawTx(md);
+        hash = md.digest();
+        hashDirty = false;
+    }
+
+    /**
+     * Computes the hash unless it is already known to match the contents, for code that needs
+     * the hash of transactions it is handed. Only changes made through the transaction's methods
+     * are noticed; after assigning a public field directly, call {@link #finalize()}.
+     */
+    void ensureFinalized() {
+        if (hashDirty || hash == null)
+            finalize();
+    }
+
+    /** Marks the cached hash as stale so the next {@link #ensureFinalized()} recomputes it */
+    public void invalidateHash() {
+        hashDirty = true;
     }
 
     public void setHash(byte[] h) {
         hash = h;
+        hashDirty = true;
+    }
+
+    /**
+     * Sets {@code h} as the finalized hash. Only for a decoder that has hashed exactly the bytes
+     * {@link #getRawTx()} will return.
+     */
+    void setFinalizedHash(byte[] h) {
+        hash = h;
+        hashDirty = false;
     }
 
     public byte[] getHash() {
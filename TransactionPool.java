@@ -1,39 +1,260 @@
 package blockchain;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
 
+/**
+ * Pending transactions, indexed by hash and ordered by fee rate (fee per raw byte). The pool is
+ * capped by transaction count and total raw size; when a cap is exceeded the transactions with
+ * the lowest fee rate are evicted first, together with the pooled transactions that spend their
+ * outputs. Every pooled input is indexed by the {@code UTXO} it spends, so double-spends are
+ * refused on arrival and the conflicts of a confirmed block are found without a scan.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    public static final int DEFAULT_MAX_COUNT = 100000;
+    public static final long DEFAULT_MAX_BYTES = 300L * 1024 * 1024;
+
+    /** a pooled transaction with the fee and size it is ranked by */
+    private static final class Entry {
+        final Transaction tx;
+        final Hash256 key;
+        final long fee;
+        final int size;
+        final long seq;
+
+        Entry(Transaction tx, Hash256 key, long fee, int size, long seq) {
+            this.tx = tx;
+            this.key = key;
+            this.fee = fee;
+            this.size = size;
+            this.seq = seq;
+        }
+    }
+
+    /** highest fee rate first, then oldest first */
+    private static final Comparator<Entry> BY_FEE_RATE = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            // cross-multiplied so that empty transactions do not divide by zero
+            int byRate = compareFeeRates(b.fee, Math.max(b.size, 1), a.fee, Math.max(a.size, 1));
+            if (byRate != 0)
+                return byRate;
+            return Long.compare(a.seq, b.seq);
+        }
+    };
+
+    /**
+     * Compares the fee rates {@code feeA / sizeA} and {@code feeB / sizeB} without dividing. The
+     * cross products are compared as 128 bit numbers, so large fees cannot overflow them.
+     */
+    static int compareFeeRates(long feeA, long sizeA, long feeB, long sizeB) {
+        long highA = Math.multiplyHigh(feeA, sizeB);
+        long highB = Math.multiplyHigh(feeB, sizeA);
+        if (highA != highB)
+            return Long.compare(highA, highB);
+        return Long.compareUnsigned(feeA * sizeB, feeB * sizeA);
+    }
+
+    private HashMap<Hash256, Entry> H;
+    private TreeSet<Entry> byFeeRate;
+    /** the pooled transaction spending each outpoint */
+    private HashMap<OutPoint, Entry> spenders;
+    private final Hash256 hashProbe = new Hash256(new byte[0]);
+    private final OutPoint outPointProbe = new OutPoint(new byte[0], 0);
+    private int maxCount;
+    private long maxBytes;
+    private long totalBytes;
+    private long nextSeq;
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        this(DEFAULT_MAX_COUNT, DEFAULT_MAX_BYTES);
+    }
+
+    /** Creates a pool that holds at most {@code maxCount} transactions and {@code maxBytes} raw bytes */
+    public TransactionPool(int maxCount, long maxBytes) {
+        H = new HashMap<Hash256, Entry>();
+        byFeeRate = new TreeSet<Entry>(BY_FEE_RATE);
+        spenders = new HashMap<OutPoint, Entry>();
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        H = new HashMap<Hash256, Entry>(txPool.H);
+        byFeeRate = new TreeSet<Entry>(txPool.byFeeRate);
+        spenders = new HashMap<OutPoint, Entry>(txPool.spenders);
+        maxCount = txPool.maxCount;
+        maxBytes = txPool.maxBytes;
+        totalBytes = txPool.totalBytes;
+        nextSeq = txPool.nextSeq;
     }
 
+    /** Adds {@code tx} with an unknown fee, ranking it below every transaction that pays one */
     public void addTransaction(Transaction tx) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+        addTransaction(tx, 0);
+    }
+
+    /**
+     * Adds {@code tx}, which pays {@code fee}, unless it spends an output that a pooled
+     * transaction already spends. While the pool is over its caps the lowest fee rate
+     * transaction is evicted along with its pooled descendants.
+     *
+     * @return true if {@code tx} is in the pool afterwards, false if it conflicts or was evicted
+     */
+    public boolean addTransaction(Transaction tx, long fee) {
+        if (H.containsKey(hashProbe.set(tx.getHash())))
+            return true;
+        if (hasConflict(tx))
+            return false;
+        for (Transaction.Input in : tx.getInputs()) {
+            // no such output can exist, so the transaction can never be mined
+            if (in.prevTxHash != null && in.prevTxHash.length > Hash256.SIZE)
+                return false;
+        }
+        Hash256 hash = new Hash256(tx.getHash());
+        Entry e = new Entry(tx, hash, fee, tx.rawTxSize(), nextSeq++);
+        H.put(hash, e);
+        byFeeRate.add(e);
+        totalBytes += e.size;
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash != null)
+                spenders.put(new OutPoint(in.prevTxHash, in.outputIndex), e);
+        }
+        while (H.size() > maxCount || totalBytes > maxBytes)
+            removeWithDescendants(byFeeRate.last());
+        return H.containsKey(hash);
+    }
+
+    /** @return true if some input of {@code tx} is already spent by a different pooled transaction */
+    public boolean hasConflict(Transaction tx) {
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            Entry spender = spenders.get(outPointProbe.set(in.prevTxHash, in.outputIndex));
+            if (spender != null && spender.tx != tx)
+                return true;
+        }
+        return false;
+    }
+
+    /** @return the pooled transaction spending {@code ut}, or null if there is none */
+    public Transaction getSpender(UTXO ut) {
+        Entry e = spenders.get(outPointProbe.set(ut.getTxHash(), ut.getIndex()));
+        return e == null ? null : e.tx;
     }
 
     public void removeTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        Entry e = H.get(hashProbe.set(txHash));
+        if (e != null)
+            remove(e);
+    }
+
+    /**
+     * Removes the transactions of an accepted block. Pooled transactions that spend the same
+     * outputs as a confirmed one can no longer be mined, so they are evicted with everything that
+     * depends on them. Runs in time proportional to the block and the evicted transactions.
+     */
+    public void removeConfirmed(Iterable<Transaction> confirmed) {
+        for (Transaction tx : confirmed) {
+            if (tx.getHash() != null)
+                removeTransaction(tx.getHash());
+        }
+        for (Transaction tx : confirmed) {
+            for (Transaction.Input in : tx.getInputs()) {
+                if (in.prevTxHash == null)
+                    continue;
+                Entry conflict = spenders.get(outPointProbe.set(in.prevTxHash, in.outputIndex));
+                if (conflict != null)
+                    removeWithDescendants(conflict);
+            }
+        }
+    }
+
+    /** Removes {@code e} and every pooled transaction that spends its outputs, directly or not */
+    private void removeWithDescendants(Entry e) {
+        ArrayDeque<Entry> stack = new ArrayDeque<Entry>();
+        stack.push(e);
+        while (!stack.isEmpty()) {
+            Entry next = stack.pop();
+            if (H.get(next.key) != next)
+                continue;
+            remove(next);
+            for (int i = 0; i < next.tx.numOutputs(); i++) {
+                Entry child = spenders.get(outPointProbe.set(next.key, i));
+                if (child != null)
+                    stack.push(child);
+            }
+        }
+    }
+
+    private void remove(Entry e) {
+        H.remove(e.key);
+        byFeeRate.remove(e);
+        totalBytes -= e.size;
+        for (Transaction.Input in : e.tx.getInputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            OutPoint ut = outPointProbe.set(in.prevTxHash, in.outputIndex);
+            if (spenders.get(ut) == e)
+                spenders.remove(ut);
+        }
     }
 
     public Transaction getTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+        Entry e = H.get(hashProbe.set(txHash));
+        return e == null ? null : e.tx;
+    }
+
+    /** @return true if a transaction with hash {@code txHash} is pooled */
+    public boolean contains(byte[] txHash) {
+        return H.containsKey(hashProbe.set(txHash));
+    }
+
+    /** @return the fee {@code txHash} was added with, or Long.MIN_VALUE if it is not pooled */
+    public long getFee(byte[] txHash) {
+        Entry e = H.get(hashProbe.set(txHash));
+        return e == null ? Long.MIN_VALUE : e.fee;
+    }
+
+    /** @return the number of pooled transactions */
+    public int size() {
+        return H.size();
+    }
+
+    /** @return the total raw size of the pooled transactions in bytes */
+    public long getTotalBytes() {
+        return totalBytes;
     }
 
     public ArrayList<Transaction> getTransactions() {
-        ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        ArrayList<Transaction> T = new ArrayList<Transaction>(H.size());
+        for (Entry e : byFeeRate)
+            T.add(e.tx);
         return T;
     }
+
+    /**
+     * @return a live view of the pool, highest fee rate first, that walks the index without
+     *         copying it. The pool must not be modified while the view is being iterated.
+     */
+    public Iterable<Transaction> bestFirst() {
+        return new Iterable<Transaction>() {
+            public Iterator<Transaction> iterator() {
+                final Iterator<Entry> it = byFeeRate.iterator();
+                return new Iterator<Transaction>() {
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    public Transaction next() {
+                        return it.next().tx;
+                    }
+                };
+            }
+        };
+    }
 }
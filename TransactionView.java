@@ -0,0 +1,209 @@
+package blockchain;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPublicKeySpec;
+
+/**
+ * A transaction read in place from its {@link WireFormat} encoding. Decoding only checks that the
+ * header lengths add up to the raw transaction; hashes, signatures and keys are read from the
+ * shared bytes when they are asked for, and a key is only built into a {@code PublicKey} the
+ * first time its output's address is used.
+ */
+public final class TransactionView {
+
+    private static final ThreadLocal<KeyFactory> RSA_KEYS = new ThreadLocal<KeyFactory>() {
+        protected KeyFactory initialValue() {
+            try {
+                return KeyFactory.getInstance("RSA");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /** the whole encoding, length prefix included */
+    private final ByteBuffer buf;
+    private final int numInputs;
+    private final int numOutputs;
+    private final int rawStart;
+    /** per input then per output, where its first field starts in {@code buf} */
+    private final int[] offsets;
+    private byte[] hash;
+    private PublicKey[] addresses;
+
+    TransactionView(ByteBuffer buf) {
+        this.buf = buf;
+        if (buf.limit() < WireFormat.TX_FIXED_HEADER)
+            throw new IllegalArgumentException("truncated transaction");
+        numInputs = buf.getInt(5);
+        numOutputs = buf.getInt(9);
+        long headerSize = WireFormat.TX_FIXED_HEADER + 4L * ((long) numInputs + numOutputs);
+        if (numInputs < 0 || numOutputs < 0 || headerSize > buf.limit())
+            throw new IllegalArgumentException("malformed transaction header");
+        rawStart = (int) headerSize;
+        offsets = new int[numInputs + numOutputs];
+        int lengthAt = WireFormat.TX_FIXED_HEADER;
+        long off = rawStart;
+        for (int i = 0; i < numInputs; i++, lengthAt += 4) {
+            offsets[i] = (int) off;
+            off += Math.max(0, WireFormat.getLength(buf, lengthAt)) + 4
+                    + Math.max(0, WireFormat.getLength(buf, lengthAt + 2));
+        }
+        for (int o = 0; o < numOutputs; o++, lengthAt += 4) {
+            offsets[numInputs + o] = (int) off;
+            off += 8 + Math.max(0, WireFormat.getLength(buf, lengthAt))
+                    + Math.max(0, WireFormat.getLength(buf, lengthAt + 2));
+        }
+        if (off != buf.limit())
+            throw new IllegalArgumentException("transaction lengths do not match its raw bytes");
+    }
+
+    public boolean isCoinbase() {
+        return (buf.get(4) & WireFormat.FLAG_COINBASE) != 0;
+    }
+
+    public int numInputs() {
+        return numInputs;
+    }
+
+    public int numOutputs() {
+        return numOutputs;
+    }
+
+    /** @return the number of bytes of the encoding */
+    public int encodedSize() {
+        return buf.limit();
+    }
+
+    /** @return a read-only view of the whole encoding */
+    public ByteBuffer encoded() {
+        return buf.asReadOnlyBuffer();
+    }
+
+    /** @return a read-only view of the raw transaction, the bytes the hash is computed over */
+    public ByteBuffer rawTx() {
+        ByteBuffer raw = buf.asReadOnlyBuffer();
+        raw.position(rawStart);
+        return raw.slice();
+    }
+
+    /** @return the hash of the transaction, computed over the encoded bytes on first use */
+    public byte[] getHash() {
+        if (hash == null) {
+            MessageDigest md = Crypto.sha256();
+            md.update(rawTx());
+            hash = md.digest();
+        }
+        return hash;
+    }
+
+    /** @return a copy of the previous transaction hash of input {@code i}, or null */
+    public byte[] getPrevTxHash(int i) {
+        return copy(offsets[checkInput(i)], inputLength(i, 0));
+    }
+
+    /** @return the output index input {@code i} spends */
+    public int getOutputIndex(int i) {
+        return buf.getInt(offsets[checkInput(i)] + Math.max(0, inputLength(i, 0)));
+    }
+
+    /** @return a copy of the signature of input {@code i}, or null */
+    public byte[] getSignature(int i) {
+        return copy(offsets[checkInput(i)] + Math.max(0, inputLength(i, 0)) + 4, inputLength(i, 2));
+    }
+
+    /** @return the value of output {@code o} in base units */
+    public long getValue(int o) {
+        return buf.getLong(offsets[numInputs + checkOutput(o)]);
+    }
+
+    /**
+     * @return the address of output {@code o}, built on first use
+     * @throws IllegalArgumentException if the encoded key is not a valid RSA public key
+     */
+    public PublicKey getAddress(int o) {
+        checkOutput(o);
+        if (addresses == null)
+            addresses = new PublicKey[numOutputs];
+        PublicKey key = addresses[o];
+        if (key == null) {
+            int lengthAt = WireFormat.TX_FIXED_HEADER + 4 * (numInputs + o);
+            int off = offsets[numInputs + o] + 8;
+            int exponentLength = WireFormat.getLength(buf, lengthAt);
+            byte[] exponent = copy(off, exponentLength);
+            byte[] modulus = copy(off + Math.max(0, exponentLength), WireFormat.getLength(buf, lengthAt + 2));
+            key = decodeKey(exponent, modulus);
+            addresses[o] = key;
+        }
+        return key;
+    }
+
+    /**
+     * @return the full transaction, finalized with the hash of the encoded bytes
+     * @throws IllegalArgumentException if an address is not a valid RSA public key
+     */
+    public Transaction toTransaction() {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < numInputs; i++) {
+            tx.addInput(getPrevTxHash(i), getOutputIndex(i));
+            tx.addSignature(getSignature(i), i);
+        }
+        for (int o = 0; o < numOutputs; o++)
+            tx.addOutput(getValue(o), getAddress(o));
+        if (isCoinbase())
+            tx.markCoinbase();
+        tx.setFinalizedHash(getHash());
+        return tx;
+    }
+
+    /** @return the length of the field at {@code at} (0 hash, 2 signature) of input {@code i} */
+    private int inputLength(int i, int at) {
+        return WireFormat.getLength(buf, WireFormat.TX_FIXED_HEADER + 4 * i + at);
+    }
+
+    private int checkInput(int i) {
+        if (i < 0 || i >= numInputs)
+            throw new IndexOutOfBoundsException("input " + i + " of " + numInputs);
+        return i;
+    }
+
+    private int checkOutput(int o) {
+        if (o < 0 || o >= numOutputs)
+            throw new IndexOutOfBoundsException("output " + o + " of " + numOutputs);
+        return o;
+    }
+
+    private byte[] copy(int off, int length) {
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        ByteBuffer src = buf.duplicate();
+        src.position(off);
+        src.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Builds the key and checks that it serializes back to the same bytes; any other encoding of
+     * the same numbers would give a transaction whose raw bytes, and so hash, differ from these.
+     */
+    static PublicKey decodeKey(byte[] exponent, byte[] modulus) {
+        if (exponent == null || modulus == null || exponent.length == 0 || modulus.length == 0)
+            throw new IllegalArgumentException("missing address");
+        BigInteger e = new BigInteger(exponent);
+        BigInteger n = new BigInteger(modulus);
+        if (e.toByteArray().length != exponent.length || n.toByteArray().length != modulus.length)
+            throw new IllegalArgumentException("address is not minimally encoded");
+        try {
+            return RSA_KEYS.get().generatePublic(new RSAPublicKeySpec(n, e));
+        } catch (InvalidKeySpecException ex) {
+            throw new IllegalArgumentException("invalid address", ex);
+        }
+    }
+}
@@ -3,23 +3,112 @@ package blockchain;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class TxHandler {
 
+    //outcome of validateTx, the first rule a tx breaks
+    public enum Validity { VALID, MALFORMED, NEGATIVE_OUTPUT, MISSING_UTXO, DUPLICATE_INPUT, VALUE_OVERFLOW, INSUFFICIENT_INPUT, INVALID_SIGNATURE }
+
+    //batches with fewer inputs than this are verified on the calling thread
+    public static final int PARALLEL_VERIFY_THRESHOLD = 8;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
-     * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
-     * constructor.
+     * {@code utxoPool}. Changes are kept in an overlay over utxoPool, so the caller's pool is never
+     * modified unless the overlay is committed.
      */
     
-    public UTXOPool currentPool;
+    public UTXOPoolOverlay currentPool;
+    
+    //executor for the signature stage of handleTxs, null verifies on the calling thread
+    private ExecutorService signatureExecutor = ForkJoinPool.commonPool();
+    
+    //verified signatures shared with other handlers, null verifies every input
+    private SignatureCache signatureCache;
+    
+    //signature results computed ahead of the sequential stage, per tx and input index
+    private IdentityHashMap<Transaction, SigCheck[]> checkedSigs;
+    
+    private final Hash256 hashProbe = new Hash256(new byte[0]);
+    
+    //one input's signature check, done against the key its utxo had when the batch started
+    private static class SigCheck {
+        private byte[] txHash;
+        private int inputIndex;
+        private PublicKey pubKey;
+        private byte[] message;
+        private byte[] signature;
+        private boolean done;
+        private boolean valid;
+        
+        SigCheck(byte[] txHash, int inputIndex, PublicKey pubKey, byte[] message, byte[] signature){
+            this.txHash = txHash;
+            this.inputIndex = inputIndex;
+            this.pubKey = pubKey;
+            this.message = message;
+            this.signature = signature;
+        }
+    }
+    
+    //a slice of the pending checks, verified together through Crypto.verifyAll
+    private class SigBatch implements Callable<Void> {
+        private List<SigCheck> checks;
+        
+        SigBatch(List<SigCheck> checks){
+            this.checks = checks;
+        }
+        
+        public Void call(){
+            int n = checks.size();
+            PublicKey[] keys = new PublicKey[n];
+            byte[][] messages = new byte[n][];
+            byte[][] signatures = new byte[n][];
+            for(int i = 0; i < n; i++){
+                SigCheck check = checks.get(i);
+                keys[i] = check.pubKey;
+                messages[i] = check.message;
+                signatures[i] = check.signature;
+            }
+            BitSet valid = Crypto.verifyAll(keys, messages, signatures);
+            for(int i = 0; i < n; i++){
+                SigCheck check = checks.get(i);
+                check.valid = valid.get(i);
+                check.done = true;
+                if(check.valid && signatureCache != null){
+                    signatureCache.markVerified(check.txHash, check.inputIndex, check.pubKey, check.message, check.signature);
+                }
+            }
+            return null;
+        }
+    }
     
     public TxHandler(UTXOPool utxoPool) {
         // IMPLEMEN T THIS
-        currentPool = utxoPool;
+        currentPool = new UTXOPoolOverlay(utxoPool);
+    }
+    
+    /** set the cache of verified signatures to consult and fill, or null to verify every input */
+    public void setSignatureCache(SignatureCache cache){
+        signatureCache = cache;
+    }
+    
+    /** set the executor used to verify signatures in parallel, or null to verify serially */
+    public void setSignatureExecutor(ExecutorService executor){
+        signatureExecutor = executor;
     }
 
-    public UTXOPool getUTXOPool(){
+    //the pool as seen after the accepted txs, commit() it to write the changes to the original pool
+    public UTXOPoolOverlay getUTXOPool(){
         return currentPool;
     }
     /**
@@ -29,59 +118,77 @@ public class TxHandler {
      * (3) no UTXO is claimed multiple times by {@code tx},
      * (4) all of {@code tx}s output values are non-negative, and
      * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
-     *     values; and false otherwise.
+     *     values, both sums fitting in a long; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
         // IMPLEMENT THIS
-        ArrayList<Transaction.Output> outputs = tx.getOutputs();
-
-        //get corresponding utxos from the tx inputs
-        ArrayList<Transaction.Input> inputs = tx.getInputs();
-        ArrayList<UTXO> txUTXO = new ArrayList<>();
-        double totalTxInput = 0; 
-        double totalTxOutput = 0;
-        
-        //4 Check if all output values are non-negative
-        for(Transaction.Output o:outputs){
-            if(o.value < 0){
-                return false;
-            }
-            totalTxOutput += o.value;
+        return validateTx(tx) == Validity.VALID;
+    }
+    
+    /**
+     * Checks {@code tx} against the rules of {@link #isValidTx}, cheapest first, and says which
+     * one it breaks. Every input costs one pool lookup; signatures are only verified once all the
+     * other rules hold.
+     * 
+     * @return {@code Validity.VALID}, or the first rule {@code tx} breaks
+     */
+    public Validity validateTx(Transaction tx) {
+        if(tx == null){
+            return Validity.MALFORMED;
         }
         
-        for(Transaction.Input i:inputs){
-            UTXO currentInputUtxo = new UTXO(i.prevTxHash, i.outputIndex);
-            
-            //3 Check if input utxo was already used
-            if(txUTXO.contains(currentInputUtxo)){
-                return false;
-            }
-            
-            //1 Check if input utxo is in the list of current utxos
-            if(currentPool.contains(currentInputUtxo)){
-                txUTXO.add(currentInputUtxo);
-            } else {
-                return false;
+        int n = tx.numInputs();
+        PublicKey[] inputKeys = new PublicKey[n];
+        HashSet<OutPoint> claimed = n > 1 ? new HashSet<>(n * 2) : null;
+        long totalTxOutput = 0;
+        long totalTxInput = 0;
+        try {
+            //4 Check if all output values are non-negative
+            for(int o = 0; o < tx.numOutputs(); o++){
+                long value = tx.getOutput(o).value;
+                if(value < 0){
+                    return Validity.NEGATIVE_OUTPUT;
+                }
+                totalTxOutput = Math.addExact(totalTxOutput, value);
             }
             
-            //calculate total value of input utxos
-            totalTxInput += currentPool.getTxOutput(currentInputUtxo).value;
-            
-            //2 Check if the signature on inputs are valid
-            PublicKey utxoPubKey = currentPool.getTxOutput(currentInputUtxo).address;
-            byte[] inputSig = i.signature;
-            int inputIndex = inputs.indexOf(i);
-            byte[] sigMessage = tx.getRawDataToSign(inputIndex);
-            if(!Crypto.verifySignature(utxoPubKey, sigMessage, inputSig)){
-                return false;
+            for(int inputIndex = 0; inputIndex < n; inputIndex++){
+                Transaction.Input in = tx.getInput(inputIndex);
+                if(in.prevTxHash == null){
+                    return Validity.MALFORMED;
+                }
+                
+                //1 Check if input utxo is in the current pool, reading its fields without building an output
+                long spentValue = currentPool.getValue(in.prevTxHash, in.outputIndex);
+                if(spentValue == UTXOPool.NO_VALUE){
+                    return Validity.MISSING_UTXO;
+                }
+                
+                //3 Check if input utxo was already claimed by an earlier input
+                if(claimed != null && !claimed.add(new OutPoint(in.prevTxHash, in.outputIndex))){
+                    return Validity.DUPLICATE_INPUT;
+                }
+                
+                totalTxInput = Math.addExact(totalTxInput, spentValue);
+                inputKeys[inputIndex] = currentPool.getAddress(in.prevTxHash, in.outputIndex);
             }
+        } catch(ArithmeticException e){
+            //amounts are exact, a sum that does not fit in a long is no amount at all
+            return Validity.VALUE_OVERFLOW;
         }
         
         //5 Check if input value is greater than output
         if(totalTxInput < totalTxOutput){
-            return false;
+            return Validity.INSUFFICIENT_INPUT;
         }
-        return true;
+        
+        //2 Check if the signature on inputs are valid, last since it is by far the most expensive
+        for(int inputIndex = 0; inputIndex < n; inputIndex++){
+            if(!verifyInputSignature(tx, inputIndex, inputKeys[inputIndex])){
+                return Validity.INVALID_SIGNATURE;
+            }
+        }
+        return Validity.VALID;
     }
     
 
@@ -89,6 +196,10 @@ public class TxHandler {
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     * 
+     * Transactions are processed in dependency order, a transaction spending the output of another
+     * one in the array is only validated after that one, so chains are accepted in a single
+     * pass whatever order they arrive in. Accepted transactions are returned in that order.
      * @param possibleTxs
      * @return 
      */
@@ -97,33 +208,86 @@ public class TxHandler {
         if(possibleTxs == null)
             return new Transaction[0];
         
-        ArrayList<Transaction> validTxs = new ArrayList<>();
+        int n = possibleTxs.length;
+        
+        //index the batch by tx hash, first occurrence wins
+        HashMap<Hash256, Integer> batch = new HashMap<>();
+        int edgeCount = 0;
+        for(int i = 0; i < n; i++){
+            if(possibleTxs[i] != null){
+                possibleTxs[i].ensureFinalized();
+                batch.putIfAbsent(new Hash256(possibleTxs[i].getHash()), i);
+                edgeCount += possibleTxs[i].numInputs();
+            }
+        }
+        
+        //dependency graph, an edge per input that spends another tx of the batch (as linked lists in arrays)
+        int[] pendingParents = new int[n];
+        int[] firstDependent = new int[n];
+        int[] edgeTarget = new int[edgeCount];
+        int[] nextEdge = new int[edgeCount];
+        Arrays.fill(firstDependent, -1);
+        int edges = 0;
+        for(int i = 0; i < n; i++){
+            if(possibleTxs[i] == null)
+                continue;
+            for(Transaction.Input in: possibleTxs[i].getInputs()){
+                if(in.prevTxHash == null)
+                    continue;
+                Integer parent = batch.get(hashProbe.set(in.prevTxHash));
+                if(parent != null && parent != i){
+                    pendingParents[i]++;
+                    edgeTarget[edges] = i;
+                    nextEdge[edges] = firstDependent[parent];
+                    firstDependent[parent] = edges++;
+                }
+            }
+        }
+        
+        //stage one: check every input signature of the batch up front, in parallel
+        checkedSigs = checkSignatures(possibleTxs, batch);
         
-        //iterate through each transaction, validate, remove spent UTXO, add new UTXO
-        for(int i = 0; i < possibleTxs.length; i++){
+        //stage two: take txs whose in-batch parents are done, validate, remove spent UTXO, add new UTXO
+        //txs on a dependency cycle never become ready and are rejected
+        int[] ready = new int[n];
+        int head = 0;
+        int tail = 0;
+        for(int i = 0; i < n; i++){
+            if(possibleTxs[i] != null && pendingParents[i] == 0)
+                ready[tail++] = i;
+        }
+        ArrayList<Transaction> validTxs = new ArrayList<>();
+        while(head < tail){
+            int i = ready[head++];
+            Transaction tx = possibleTxs[i];
             
             //validate tx
-            if(isValidTx(possibleTxs[i])){
-                possibleTxs[i].finalize();
-                validTxs.add(possibleTxs[i]);
+            if(isValidTx(tx)){
+                validTxs.add(tx);
                 
                 //remove valid/spent UTXOs from current pool
-                for(Transaction.Input x:possibleTxs[i].getInputs()){
-                    UTXO inputUTXO = new UTXO(x.prevTxHash, x.outputIndex);
-                    currentPool.removeUTXO(inputUTXO);
+                for(Transaction.Input x:tx.getInputs()){
+                    currentPool.removeUTXO(x.prevTxHash, x.outputIndex);
                 }
                 
-                //add new UTXOs to current pool
+                //add new UTXOs to current pool, every output key built from the one hash key
+                Hash256 txKey = new Hash256(tx.getHash());
                 int utxoIndex = 0;
-                for(Transaction.Output x:possibleTxs[i].getOutputs()){
-                    UTXO outputUTXO = new UTXO(possibleTxs[i].getHash(), utxoIndex);
-                    currentPool.addUTXO(outputUTXO, x);
+                for(Transaction.Output x:tx.getOutputs()){
+                    currentPool.addUTXO(new OutPoint(txKey, utxoIndex), x);
                     utxoIndex++;
                 }
-                
+            }
+            
+            //valid or not, its dependents may now be processed
+            for(int e = firstDependent[i]; e != -1; e = nextEdge[e]){
+                if(--pendingParents[edgeTarget[e]] == 0)
+                    ready[tail++] = edgeTarget[e];
             }
         }
         
+        checkedSigs = null;
+        
         //return list of validated 
         Transaction[] validatedTxs = new Transaction[validTxs.size()];
         
@@ -131,6 +295,93 @@ public class TxHandler {
         
         return validatedTxs;
     }
+    
+    //use the stage one result when it was computed against the same key, otherwise verify now
+    private boolean verifyInputSignature(Transaction tx, int inputIndex, PublicKey utxoPubKey){
+        if(checkedSigs != null){
+            SigCheck[] checks = checkedSigs.get(tx);
+            if(checks != null){
+                SigCheck check = checks[inputIndex];
+                if(check != null && check.done && check.pubKey == utxoPubKey){
+                    return check.valid;
+                }
+            }
+        }
+        byte[] sigMessage = tx.getRawDataToSign(inputIndex);
+        return verifySignature(tx.getHash(), inputIndex, utxoPubKey, sigMessage, tx.getInput(inputIndex).signature);
+    }
+    
+    private boolean verifySignature(byte[] txHash, int inputIndex, PublicKey pubKey, byte[] message, byte[] signature){
+        if(signatureCache != null){
+            return signatureCache.verify(txHash, inputIndex, pubKey, message, signature);
+        }
+        return Crypto.verifySignature(pubKey, message, signature);
+    }
+    
+    //resolve each input's key from the pool or from outputs of the batch itself and verify them all
+    //null if the wait for the slices was interrupted, in which case no result may be trusted
+    private IdentityHashMap<Transaction, SigCheck[]> checkSignatures(Transaction[] txs, HashMap<Hash256, Integer> batch){
+        IdentityHashMap<Transaction, SigCheck[]> checked = new IdentityHashMap<>();
+        ArrayList<SigCheck> pending = new ArrayList<>();
+        for(Transaction tx: txs){
+            if(tx == null || checked.containsKey(tx))
+                continue;
+            SigCheck[] checks = new SigCheck[tx.numInputs()];
+            for(int i = 0; i < checks.length; i++){
+                Transaction.Input in = tx.getInput(i);
+                if(in.prevTxHash == null)
+                    continue;
+                PublicKey spentKey = null;
+                boolean found = currentPool.getValue(in.prevTxHash, in.outputIndex) != UTXOPool.NO_VALUE;
+                if(found){
+                    spentKey = currentPool.getAddress(in.prevTxHash, in.outputIndex);
+                } else if(in.outputIndex >= 0){
+                    Integer parent = batch.get(hashProbe.set(in.prevTxHash));
+                    Transaction.Output spent = parent == null ? null : txs[parent].getOutput(in.outputIndex);
+                    if(spent != null){
+                        spentKey = spent.address;
+                        found = true;
+                    }
+                }
+                if(found){
+                    checks[i] = new SigCheck(tx.getHash(), i, spentKey, tx.getRawDataToSign(i), in.signature);
+                    if(signatureCache != null && signatureCache.isVerified(tx.getHash(), i, spentKey, checks[i].message, in.signature)){
+                        checks[i].valid = true;
+                        checks[i].done = true;
+                    } else {
+                        pending.add(checks[i]);
+                    }
+                }
+            }
+            checked.put(tx, checks);
+        }
+        
+        if(signatureExecutor == null || pending.size() < PARALLEL_VERIFY_THRESHOLD){
+            new SigBatch(pending).call();
+            return checked;
+        }
+        
+        //a few slices per core so uneven slices still keep every core busy
+        int slices = Runtime.getRuntime().availableProcessors() * 4;
+        int sliceSize = Math.max(PARALLEL_VERIFY_THRESHOLD, (pending.size() + slices - 1) / slices);
+        ArrayList<SigBatch> batches = new ArrayList<>();
+        for(int from = 0; from < pending.size(); from += sliceSize){
+            batches.add(new SigBatch(pending.subList(from, Math.min(pending.size(), from + sliceSize))));
+        }
+        try {
+            for(Future<Void> f: signatureExecutor.invokeAll(batches)){
+                f.get();
+            }
+        } catch(InterruptedException e){
+            //slices still running keep writing their checks with nothing ordering those writes before the
+            //second stage reads them, so drop every stage one result and let the second stage verify serially
+            Thread.currentThread().interrupt();
+            return null;
+        } catch(ExecutionException e){
+            //any failure just leaves that slice's checks undone for the second stage
+        }
+        return checked;
+    }
 
 }
 
@@ -0,0 +1,416 @@
+package blockchain;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+
+/**
+ * Chooses which pooled transactions go into a new block. The fee of a transaction is the sum of
+ * its input values minus the sum of its output values, with inputs resolved against the tip
+ * {@code UTXOPool} or against other candidates. The selected set never spends an output twice,
+ * contains every in-pool parent of each member, and fits the configured transaction count and
+ * byte limits. Among such sets it maximizes the total fee: exactly by branch and bound when
+ * there are at most {@code exactSearchLimit} candidates, otherwise by greedily taking the
+ * transaction package (a transaction plus its unselected ancestors) with the best fee per byte.
+ * Signatures are not checked here; the caller still runs the result through {@code TxHandler}.
+ */
+public class TxSelector {
+
+    public static final int DEFAULT_EXACT_SEARCH_LIMIT = 16;
+
+    /** packages with more unselected ancestors than this wait until some ancestors are selected */
+    public static final int MAX_PACKAGE_SIZE = 25;
+
+    private int maxTxs;
+    private long maxBytes;
+    private int exactSearchLimit = DEFAULT_EXACT_SEARCH_LIMIT;
+    private final Hash256 hashProbe = new Hash256(new byte[0]);
+
+    /** A candidate with its resolved fee and its links to other candidates */
+    private static final class Candidate {
+        final Transaction tx;
+        final int index;
+        final long fee;
+        final int size;
+        final ArrayList<Candidate> parents = new ArrayList<Candidate>();
+        final ArrayList<Candidate> children = new ArrayList<Candidate>();
+        final ArrayList<OutPoint> spends = new ArrayList<OutPoint>();
+        boolean selected;
+        boolean dead;
+        int version;
+
+        Candidate(Transaction tx, int index, long fee) {
+            this.tx = tx;
+            this.index = index;
+            this.fee = fee;
+            size = tx.rawTxSize();
+        }
+    }
+
+    /** A package score, stale once its candidate's version moves on */
+    private static final class Score implements Comparable<Score> {
+        final Candidate candidate;
+        final int version;
+        final ArrayList<Candidate> pkg;
+        final long fee;
+        final long size;
+
+        Score(Candidate candidate, ArrayList<Candidate> pkg) {
+            this.candidate = candidate;
+            this.version = candidate.version;
+            this.pkg = pkg;
+            long f = 0;
+            long s = 0;
+            for (Candidate c : pkg) {
+                f += c.fee;
+                s += c.size;
+            }
+            fee = f;
+            size = s;
+        }
+
+        public int compareTo(Score other) {
+            // higher fee per byte first
+            int byRate = TransactionPool.compareFeeRates(other.fee, other.size, fee, size);
+            if (byRate != 0)
+                return byRate;
+            return Integer.compare(candidate.index, other.candidate.index);
+        }
+    }
+
+    /** Creates a selector without count or size limits */
+    public TxSelector() {
+        this(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /** Creates a selector that picks at most {@code maxTxs} transactions and {@code maxBytes} raw bytes */
+    public TxSelector(int maxTxs, long maxBytes) {
+        this.maxTxs = maxTxs;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Candidate sets up to this size are solved exactly, larger ones greedily */
+    public void setExactSearchLimit(int limit) {
+        exactSearchLimit = limit;
+    }
+
+    /**
+     * @return the selected transactions from {@code txs}, every parent before its children
+     */
+    public Transaction[] select(UTXOPool utxoPool, Iterable<Transaction> txs) {
+        ArrayList<Candidate> candidates = resolve(utxoPool, txs);
+        ArrayList<Candidate> chosen = candidates.size() <= exactSearchLimit
+                ? selectExact(candidates) : selectGreedy(candidates);
+        Transaction[] result = new Transaction[chosen.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = chosen.get(i).tx;
+        return result;
+    }
+
+    /**
+     * Resolves fees and parent links and returns the usable candidates in topological order.
+     * Transactions with unknown inputs, a repeated input, negative outputs or a negative fee are
+     * dropped together with everything that depends on them.
+     */
+    private ArrayList<Candidate> resolve(UTXOPool utxoPool, Iterable<Transaction> txs) {
+        HashMap<Hash256, Integer> indexOf = new HashMap<Hash256, Integer>();
+        ArrayList<Transaction> unique = new ArrayList<Transaction>();
+        for (Transaction tx : txs) {
+            if (tx == null)
+                continue;
+            tx.ensureFinalized();
+            if (indexOf.putIfAbsent(new Hash256(tx.getHash()), unique.size()) == null)
+                unique.add(tx);
+        }
+
+        // edges from each parent to the transactions spending its outputs
+        int n = unique.size();
+        int[] pendingParents = new int[n];
+        ArrayList<ArrayList<Integer>> dependents = new ArrayList<ArrayList<Integer>>(n);
+        for (int i = 0; i < n; i++)
+            dependents.add(new ArrayList<Integer>(0));
+        for (int i = 0; i < n; i++) {
+            for (Transaction.Input input : unique.get(i).getInputs()) {
+                if (input.prevTxHash == null || utxoPool.contains(input.prevTxHash, input.outputIndex))
+                    continue;
+                Integer parent = indexOf.get(hashProbe.set(input.prevTxHash));
+                if (parent != null && parent != i) {
+                    ArrayList<Integer> edges = dependents.get(parent);
+                    if (edges.isEmpty() || edges.get(edges.size() - 1) != i) {
+                        edges.add(i);
+                        pendingParents[i]++;
+                    }
+                }
+            }
+        }
+
+        Candidate[] byIndex = new Candidate[n];
+        ArrayDeque<Integer> ready = new ArrayDeque<Integer>();
+        for (int i = 0; i < n; i++) {
+            if (pendingParents[i] == 0)
+                ready.add(i);
+        }
+        ArrayList<Candidate> ordered = new ArrayList<Candidate>();
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            Candidate c = evaluate(unique.get(i), utxoPool, indexOf, byIndex, ordered.size());
+            if (c != null) {
+                byIndex[i] = c;
+                ordered.add(c);
+            }
+            // a rejected parent still releases its dependents, which then fail to resolve the input
+            for (int d : dependents.get(i)) {
+                if (--pendingParents[d] == 0)
+                    ready.add(d);
+            }
+        }
+        return ordered;
+    }
+
+    /** @return the candidate for {@code tx}, or null if it can never be included */
+    private Candidate evaluate(Transaction tx, UTXOPool utxoPool, HashMap<Hash256, Integer> indexOf,
+            Candidate[] byIndex, int index) {
+        long in = 0;
+        long out = 0;
+        HashSet<OutPoint> spent = new HashSet<OutPoint>();
+        ArrayList<Candidate> parents = new ArrayList<Candidate>();
+        try {
+            for (Transaction.Input input : tx.getInputs()) {
+                if (input.prevTxHash == null || input.prevTxHash.length > Hash256.SIZE)
+                    return null;
+                OutPoint ut = new OutPoint(input.prevTxHash, input.outputIndex);
+                if (!spent.add(ut))
+                    return null;
+                long prevValue = utxoPool.getValue(ut);
+                if (prevValue == UTXOPool.NO_VALUE) {
+                    Integer p = indexOf.get(hashProbe.set(input.prevTxHash));
+                    Candidate parent = p == null ? null : byIndex[p];
+                    if (parent == null || input.outputIndex < 0)
+                        return null;
+                    Transaction.Output prevOut = parent.tx.getOutput(input.outputIndex);
+                    if (prevOut == null)
+                        return null;
+                    prevValue = prevOut.value;
+                    if (!parents.contains(parent))
+                        parents.add(parent);
+                }
+                in = Math.addExact(in, prevValue);
+            }
+            for (Transaction.Output o : tx.getOutputs()) {
+                if (o.value < 0)
+                    return null;
+                out = Math.addExact(out, o.value);
+            }
+        } catch (ArithmeticException e) {
+            // a sum that overflows is rejected by TxHandler too
+            return null;
+        }
+        if (in < out)
+            return null;
+
+        Candidate c = new Candidate(tx, index, in - out);
+        c.spends.addAll(spent);
+        for (Candidate parent : parents) {
+            c.parents.add(parent);
+            parent.children.add(c);
+        }
+        return c;
+    }
+
+    /** Branch and bound over include/exclude decisions in topological order */
+    private ArrayList<Candidate> selectExact(ArrayList<Candidate> candidates) {
+        long[] remainingFee = new long[candidates.size() + 1];
+        for (int i = candidates.size() - 1; i >= 0; i--)
+            remainingFee[i] = remainingFee[i + 1] + Math.max(0, candidates.get(i).fee);
+        ExactSearch search = new ExactSearch(candidates, remainingFee);
+        search.run(0, 0, 0, 0, new HashSet<OutPoint>());
+        ArrayList<Candidate> chosen = new ArrayList<Candidate>();
+        for (Candidate c : candidates) {
+            if (search.best[c.index])
+                chosen.add(c);
+        }
+        return chosen;
+    }
+
+    private final class ExactSearch {
+        final ArrayList<Candidate> candidates;
+        final long[] remainingFee;
+        final boolean[] current;
+        boolean[] best;
+        long bestFee = -1;
+
+        ExactSearch(ArrayList<Candidate> candidates, long[] remainingFee) {
+            this.candidates = candidates;
+            this.remainingFee = remainingFee;
+            current = new boolean[candidates.size()];
+            best = new boolean[candidates.size()];
+        }
+
+        void run(int i, long fee, int count, long bytes, HashSet<OutPoint> spent) {
+            if (fee + remainingFee[i] <= bestFee)
+                return;
+            if (i == candidates.size()) {
+                bestFee = fee;
+                best = current.clone();
+                return;
+            }
+            Candidate c = candidates.get(i);
+            if (count < maxTxs && c.size <= maxBytes - bytes && parentsIncluded(c)
+                    && !spendsAny(c, spent)) {
+                current[i] = true;
+                spent.addAll(c.spends);
+                run(i + 1, fee + c.fee, count + 1, bytes + c.size, spent);
+                spent.removeAll(c.spends);
+                current[i] = false;
+            }
+            run(i + 1, fee, count, bytes, spent);
+        }
+
+        boolean parentsIncluded(Candidate c) {
+            for (Candidate p : c.parents) {
+                if (!current[p.index])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static boolean spendsAny(Candidate c, HashSet<OutPoint> spent) {
+        for (OutPoint ut : c.spends) {
+            if (spent.contains(ut))
+                return true;
+        }
+        return false;
+    }
+
+    /** Repeatedly takes the best fee-per-byte package that still fits and does not conflict */
+    private ArrayList<Candidate> selectGreedy(ArrayList<Candidate> candidates) {
+        HashMap<OutPoint, ArrayList<Candidate>> spenders = new HashMap<OutPoint, ArrayList<Candidate>>();
+        for (Candidate c : candidates) {
+            for (OutPoint ut : c.spends) {
+                ArrayList<Candidate> list = spenders.get(ut);
+                if (list == null) {
+                    list = new ArrayList<Candidate>(1);
+                    spenders.put(ut, list);
+                }
+                list.add(c);
+            }
+        }
+
+        PriorityQueue<Score> queue = new PriorityQueue<Score>();
+        for (Candidate c : candidates)
+            push(queue, c);
+
+        ArrayList<Candidate> chosen = new ArrayList<Candidate>();
+        long bytes = 0;
+        while (!queue.isEmpty() && chosen.size() < maxTxs) {
+            Score s = queue.poll();
+            Candidate top = s.candidate;
+            if (top.selected || top.dead || s.version != top.version)
+                continue;
+            if (chosen.size() + s.pkg.size() > maxTxs || s.size > maxBytes - bytes)
+                continue;
+            for (Candidate c : s.pkg) {
+                c.selected = true;
+                chosen.add(c);
+                bytes += c.size;
+            }
+            for (Candidate c : s.pkg) {
+                // whatever else spends the same outputs can never be selected now
+                for (OutPoint ut : c.spends) {
+                    for (Candidate rival : spenders.get(ut)) {
+                        if (rival != c)
+                            kill(rival);
+                    }
+                }
+            }
+            // descendants now have smaller packages
+            rescore(queue, s.pkg);
+        }
+        return chosen;
+    }
+
+    private void push(PriorityQueue<Score> queue, Candidate c) {
+        ArrayList<Candidate> pkg = collectPackage(c);
+        if (pkg != null)
+            queue.add(new Score(c, pkg));
+    }
+
+    /**
+     * @return c and its unselected ancestors, parents first, or null if the package contains a
+     *         dead candidate, exceeds {@link #MAX_PACKAGE_SIZE} or spends an output twice
+     */
+    private ArrayList<Candidate> collectPackage(Candidate c) {
+        ArrayList<Candidate> pkg = new ArrayList<Candidate>();
+        HashSet<Candidate> seen = new HashSet<Candidate>();
+        pkg.add(c);
+        seen.add(c);
+        for (int i = 0; i < pkg.size(); i++) {
+            Candidate member = pkg.get(i);
+            if (member.dead)
+                return null;
+            for (Candidate p : member.parents) {
+                if (!p.selected && seen.add(p)) {
+                    if (pkg.size() == MAX_PACKAGE_SIZE)
+                        return null;
+                    pkg.add(p);
+                }
+            }
+        }
+        HashSet<OutPoint> spent = new HashSet<OutPoint>();
+        for (Candidate member : pkg) {
+            for (OutPoint ut : member.spends) {
+                if (!spent.add(ut))
+                    return null;
+            }
+        }
+        // candidate indexes follow a topological order
+        pkg.sort(BY_INDEX);
+        return pkg;
+    }
+
+    private static final Comparator<Candidate> BY_INDEX = new Comparator<Candidate>() {
+        public int compare(Candidate a, Candidate b) {
+            return Integer.compare(a.index, b.index);
+        }
+    };
+
+    private void kill(Candidate c) {
+        ArrayDeque<Candidate> stack = new ArrayDeque<Candidate>();
+        stack.push(c);
+        while (!stack.isEmpty()) {
+            Candidate next = stack.pop();
+            if (next.dead || next.selected)
+                continue;
+            next.dead = true;
+            for (Candidate child : next.children)
+                stack.push(child);
+        }
+    }
+
+    /**
+     * Rescores the unselected descendants of a just-selected package. Every transaction between a
+     * selected ancestor and a descendant is part of the descendant's package, so only descendants
+     * within {@link #MAX_PACKAGE_SIZE} steps can have a package that fits.
+     */
+    private void rescore(PriorityQueue<Score> queue, ArrayList<Candidate> selected) {
+        HashSet<Candidate> seen = new HashSet<Candidate>();
+        ArrayList<Candidate> frontier = new ArrayList<Candidate>(selected);
+        for (int depth = 0; depth < MAX_PACKAGE_SIZE && !frontier.isEmpty(); depth++) {
+            ArrayList<Candidate> next = new ArrayList<Candidate>();
+            for (Candidate c : frontier) {
+                for (Candidate child : c.children) {
+                    if (child.selected || child.dead || !seen.add(child))
+                        continue;
+                    child.version++;
+                    push(queue, child);
+                    next.add(child);
+                }
+            }
+            frontier = next;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package blockchain;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The net change a single block makes to the UTXO set: the UTXOs it created and the UTXOs it
+ * spent from its parent's pool. An output that is both created and spent inside the block does not
+ * appear in either map, so applying or undoing a delta only touches the parent's UTXOs.
+ */
+public class UTXODelta {
+
+    private HashMap<OutPoint, Transaction.Output> created;
+    private HashMap<OutPoint, Transaction.Output> spent;
+
+    public UTXODelta() {
+        created = new HashMap<OutPoint, Transaction.Output>();
+        spent = new HashMap<OutPoint, Transaction.Output>();
+    }
+
+    /** Records that UTXO {@code utxo} with output {@code txOut} was created by the block */
+    public void addUTXO(OutPoint utxo, Transaction.Output txOut) {
+        created.put(utxo, txOut);
+    }
+
+    /**
+     * Records that UTXO {@code utxo} with output {@code txOut} was created by the block, replacing
+     * {@code replaced} in the parent's pool (e.g. a repeated coinbase), so undoing restores it.
+     */
+    public void addUTXO(OutPoint utxo, Transaction.Output txOut, Transaction.Output replaced) {
+        if (replaced != null && !spent.containsKey(utxo))
+            spent.put(utxo, replaced);
+        created.put(utxo, txOut);
+    }
+
+    /** Records that UTXO {@code utxo}, whose output is {@code txOut}, was spent by the block */
+    public void removeUTXO(OutPoint utxo, Transaction.Output txOut) {
+        if (created.remove(utxo) == null)
+            spent.put(utxo, txOut);
+    }
+
+    /** Rolls {@code pool} forward from the parent's state to the state after this block */
+    public void applyTo(UTXOPool pool) {
+        for (OutPoint ut : spent.keySet())
+            pool.removeUTXO(ut);
+        for (Map.Entry<OutPoint, Transaction.Output> e : created.entrySet())
+            pool.addUTXO(e.getKey(), e.getValue());
+    }
+
+    /** Rolls {@code pool} back from the state after this block to the parent's state */
+    public void undoFrom(UTXOPool pool) {
+        for (OutPoint ut : created.keySet())
+            pool.removeUTXO(ut);
+        for (Map.Entry<OutPoint, Transaction.Output> e : spent.entrySet())
+            pool.addUTXO(e.getKey(), e.getValue());
+    }
+
+    /** @return the UTXOs created by the block, keyed to their outputs */
+    public Map<OutPoint, Transaction.Output> getCreated() {
+        return created;
+    }
+
+    /** @return the parent's UTXOs spent by the block, keyed to their outputs */
+    public Map<OutPoint, Transaction.Output> getSpent() {
+        return spent;
+    }
+
+    /** @return the number of UTXOs this delta touches */
+    public int size() {
+        return created.size() + spent.size();
+    }
+}
@@ -1,34 +1,106 @@
 package blockchain;
 
+import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
 
 public class UTXOPool {
 
+    /** returned by {@code getValue} for an output that is not in the pool */
+    public static final long NO_VALUE = Long.MIN_VALUE;
+
+    /**
+     * The current collection of UTXOs, with each one mapped to its corresponding transaction output.
+     * The map is persistent, so copies of this pool share every entry neither of them has changed.
+     */
+    private PersistentUTXOMap H;
+
     /**
-     * The current collection of UTXOs, with each one mapped to its corresponding transaction output
+     * Used instead of {@code H} by a compact pool: an open-addressing table with no per-entry
+     * objects, updated in place. Copying a compact pool copies the table.
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOTable table;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = PersistentUTXOMap.EMPTY;
+    }
+
+    /**
+     * Creates a new empty compact UTXOPool sized for {@code expectedSize} UTXOs. It needs a
+     * fraction of the memory of a regular pool, but a copy of it takes time linear in its size.
+     */
+    public UTXOPool(int expectedSize) {
+        table = new UTXOTable(expectedSize);
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}. This takes constant time unless
+     * {@code uPool} is compact; later changes to either pool are not visible in the other.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        if (uPool.isCompact())
+            table = uPool.table();
+        else
+            H = uPool.map();
+    }
+
+    /** @return true if this pool keeps its UTXOs in an open-addressing table */
+    public boolean isCompact() {
+        return table != null;
+    }
+
+    /** @return the persistent map holding the pool's current contents */
+    PersistentUTXOMap map() {
+        return H;
     }
 
-    /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
+    /** @return a new table holding the pool's current contents, for compact pools only */
+    UTXOTable table() {
+        return table.copy();
+    }
+
+    /**
+     * Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool
+     *
+     * @throws IllegalArgumentException if the transaction hash of {@code utxo} is longer than
+     *         {@link Hash256#SIZE} bytes, since keys hold at most a SHA-256 hash
+     */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        addUTXO(new OutPoint(utxo), txOut);
     }
 
-    /** Removes the UTXO {@code utxo} from the pool */
+    /** Adds a mapping from {@code outPoint} to transaction output {@code txOut} to the pool */
+    public void addUTXO(OutPoint outPoint, Transaction.Output txOut) {
+        if (table != null)
+            table.put(outPoint, txOut);
+        else
+            H = H.put(outPoint, txOut);
+    }
+
+    /**
+     * Removes the UTXO {@code utxo} from the pool. A transaction hash longer than
+     * {@link Hash256#SIZE} bytes can never have been added, so it leaves the pool unchanged.
+     */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        removeUTXO(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    /**
+     * Removes output {@code index} of transaction {@code txHash} from the pool. A hash longer than
+     * {@link Hash256#SIZE} bytes can never have been added, so it leaves the pool unchanged.
+     */
+    public void removeUTXO(byte[] txHash, int index) {
+        if (txHash.length > Hash256.SIZE)
+            return;
+        removeUTXO(new OutPoint(txHash, index));
+    }
+
+    /** Removes {@code outPoint} from the pool */
+    public void removeUTXO(OutPoint outPoint) {
+        if (table != null)
+            table.remove(outPoint);
+        else
+            H = H.remove(outPoint);
     }
 
     /**
@@ -36,21 +108,90 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        return getTxOutput(probe(ut.getTxHash(), ut.getIndex()));
+    }
+
+    /**
+     * @return output {@code index} of transaction {@code txHash}, or null if it is not in the pool.
+     *         Looks the pool up without allocating a key.
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return getTxOutput(probe(txHash, index));
+    }
+
+    /** @return the transaction output of {@code outPoint}, or null if it is not in the pool */
+    public Transaction.Output getTxOutput(OutPoint outPoint) {
+        return table != null ? table.get(outPoint) : H.get(outPoint);
+    }
+
+    /** @return the value of output {@code index} of transaction {@code txHash}, or {@link #NO_VALUE} if it is not in the pool */
+    public long getValue(byte[] txHash, int index) {
+        return getValue(probe(txHash, index));
+    }
+
+    /** @return the value of the output of {@code outPoint}, or {@link #NO_VALUE} if it is not in the pool */
+    public long getValue(OutPoint outPoint) {
+        if (table != null)
+            return table.getValue(outPoint);
+        Transaction.Output txOut = H.get(outPoint);
+        return txOut == null ? NO_VALUE : txOut.value;
+    }
+
+    /**
+     * @return the address of output {@code index} of transaction {@code txHash}, or null if it is
+     *         not in the pool. Together with {@link #getValue(byte[], int)} it reads an output
+     *         without allocating one, which a compact pool would otherwise do per lookup.
+     */
+    public PublicKey getAddress(byte[] txHash, int index) {
+        return getAddress(probe(txHash, index));
+    }
+
+    /** @return the address of the output of {@code outPoint}, or null if it is not in the pool */
+    public PublicKey getAddress(OutPoint outPoint) {
+        if (table != null)
+            return table.getAddress(outPoint);
+        Transaction.Output txOut = H.get(outPoint);
+        return txOut == null ? null : txOut.address;
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return contains(probe(utxo.getTxHash(), utxo.getIndex()));
+    }
+
+    /** @return true if output {@code index} of transaction {@code txHash} is in the pool */
+    public boolean contains(byte[] txHash, int index) {
+        return contains(probe(txHash, index));
+    }
+
+    /** @return true if {@code outPoint} is in the pool */
+    public boolean contains(OutPoint outPoint) {
+        return table != null ? table.containsKey(outPoint) : H.containsKey(outPoint);
+    }
+
+    /** one lookup key per thread, re-pointed for each lookup by hash bytes and never stored */
+    private static final ThreadLocal<OutPoint> PROBE = new ThreadLocal<OutPoint>() {
+        protected OutPoint initialValue() {
+            return new OutPoint(new byte[0], 0);
+        }
+    };
+
+    private static OutPoint probe(byte[] txHash, int index) {
+        return PROBE.get().set(txHash, index);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return table != null ? table.size() : H.size();
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size());
+        if (table != null)
+            table.collectKeys(allUTXO);
+        else
+            H.collectKeys(allUTXO);
         return allUTXO;
     }
 }
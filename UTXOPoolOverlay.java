@@ -0,0 +1,154 @@
+package blockchain;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A transactional view over a base {@code UTXOPool}. Additions and removals are recorded in the
+ * overlay and never reach the base until {@link #commit()} is called, so speculative validation
+ * costs O(touched UTXOs) and can be thrown away with {@link #discard()}.
+ */
+public class UTXOPoolOverlay extends UTXOPool {
+
+    private UTXOPool base;
+
+    /** UTXOs visible through the overlay that are not (or no longer) the base's own entries */
+    private HashMap<OutPoint, Transaction.Output> added;
+
+    /** Base UTXOs hidden by the overlay, mapped to their base outputs */
+    private HashMap<OutPoint, Transaction.Output> removed;
+
+    /** Creates an empty overlay over {@code base} */
+    public UTXOPoolOverlay(UTXOPool base) {
+        this.base = base;
+        added = new HashMap<OutPoint, Transaction.Output>();
+        removed = new HashMap<OutPoint, Transaction.Output>();
+    }
+
+    /** @return the pool this overlay reads through to */
+    public UTXOPool getBase() {
+        return base;
+    }
+
+    @Override
+    public void addUTXO(OutPoint utxo, Transaction.Output txOut) {
+        hideBaseEntry(utxo);
+        added.put(utxo, txOut);
+    }
+
+    @Override
+    public void removeUTXO(OutPoint utxo) {
+        added.remove(utxo);
+        hideBaseEntry(utxo);
+    }
+
+    private void hideBaseEntry(OutPoint utxo) {
+        if (!removed.containsKey(utxo)) {
+            Transaction.Output baseOut = base.getTxOutput(utxo);
+            if (baseOut != null || base.contains(utxo))
+                removed.put(utxo, baseOut);
+        }
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(OutPoint ut) {
+        Transaction.Output txOut = added.get(ut);
+        if (txOut != null || removed.containsKey(ut))
+            return txOut;
+        return base.getTxOutput(ut);
+    }
+
+    @Override
+    public long getValue(OutPoint ut) {
+        Transaction.Output txOut = added.get(ut);
+        if (txOut != null)
+            return txOut.value;
+        if (removed.containsKey(ut) || added.containsKey(ut))
+            return NO_VALUE;
+        return base.getValue(ut);
+    }
+
+    @Override
+    public PublicKey getAddress(OutPoint ut) {
+        Transaction.Output txOut = added.get(ut);
+        if (txOut != null || removed.containsKey(ut))
+            return txOut == null ? null : txOut.address;
+        return base.getAddress(ut);
+    }
+
+    @Override
+    public boolean contains(OutPoint utxo) {
+        if (added.containsKey(utxo))
+            return true;
+        return !removed.containsKey(utxo) && base.contains(utxo);
+    }
+
+    @Override
+    public int size() {
+        return base.size() - removed.size() + added.size();
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size());
+        for (UTXO ut : base.getAllUTXO()) {
+            if (!removed.containsKey(new OutPoint(ut)))
+                allUTXO.add(ut);
+        }
+        for (OutPoint op : added.keySet())
+            allUTXO.add(op.toUTXO());
+        return allUTXO;
+    }
+
+    @Override
+    public boolean isCompact() {
+        return base.isCompact();
+    }
+
+    @Override
+    UTXOTable table() {
+        UTXOTable t = base.table();
+        for (OutPoint ut : removed.keySet())
+            t.remove(ut);
+        for (Map.Entry<OutPoint, Transaction.Output> e : added.entrySet())
+            t.put(e.getKey(), e.getValue());
+        return t;
+    }
+
+    @Override
+    PersistentUTXOMap map() {
+        PersistentUTXOMap m = base.map();
+        for (OutPoint ut : removed.keySet())
+            m = m.remove(ut);
+        for (Map.Entry<OutPoint, Transaction.Output> e : added.entrySet())
+            m = m.put(e.getKey(), e.getValue());
+        return m;
+    }
+
+    /** @return the changes recorded so far as a block delta against the base pool */
+    public UTXODelta toDelta() {
+        UTXODelta delta = new UTXODelta();
+        for (Map.Entry<OutPoint, Transaction.Output> e : removed.entrySet())
+            delta.removeUTXO(e.getKey(), e.getValue());
+        for (Map.Entry<OutPoint, Transaction.Output> e : added.entrySet())
+            delta.addUTXO(e.getKey(), e.getValue());
+        return delta;
+    }
+
+    /** Writes the recorded changes through to the base pool and empties the overlay */
+    public void commit() {
+        for (OutPoint ut : removed.keySet())
+            base.removeUTXO(ut);
+        for (Map.Entry<OutPoint, Transaction.Output> e : added.entrySet())
+            base.addUTXO(e.getKey(), e.getValue());
+        discard();
+    }
+
+    /** Drops the recorded changes, leaving the overlay equal to its base again */
+    public void discard() {
+        added.clear();
+        removed.clear();
+    }
+}
@@ -0,0 +1,244 @@
+package blockchain;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The UTXO set after one block, saved to a file so a {@code BlockChain} can restart from it
+ * instead of from the genesis block. All numbers are big-endian:
+ *
+ * <pre>
+ *   long   {@link #MAGIC}, int {@link #VERSION}
+ *   int    height of the block
+ *   32     hash of the block
+ *   int    number of addresses, long number of UTXOs
+ *   addresses: ushort exponent length, ushort modulus length, exponent, modulus
+ *   UTXOs, sorted by transaction hash then output index:
+ *     32 transaction hash (zero padded), byte hash length, int output index, long value,
+ *     int address number
+ *   int    CRC32 of everything before it
+ * </pre>
+ *
+ * Each distinct address is stored once and every UTXO has the same size. A snapshot is written
+ * to a temporary file that replaces the target only once it is complete and forced to disk, and
+ * it is loaded through one memory mapping: the checksum is computed over the mapping and the
+ * UTXOs are read back in a single sequential pass.
+ */
+public final class UTXOSnapshot {
+
+    /** "UTXOSNAP" in ASCII */
+    public static final long MAGIC = 0x5554584F534E4150L;
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8 + 4 + 4 + Hash256.SIZE + 4 + 8;
+    private static final int UTXO_SIZE = Hash256.SIZE + 1 + 4 + 8 + 4;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** transaction hash words, then hash length, then output index, as the file is sorted */
+    private static final Comparator<OutPoint> BY_KEY = new Comparator<OutPoint>() {
+        public int compare(OutPoint a, OutPoint b) {
+            int c = Long.compareUnsigned(a.w0(), b.w0());
+            if (c == 0)
+                c = Long.compareUnsigned(a.w1(), b.w1());
+            if (c == 0)
+                c = Long.compareUnsigned(a.w2(), b.w2());
+            if (c == 0)
+                c = Long.compareUnsigned(a.w3(), b.w3());
+            if (c == 0)
+                c = Integer.compare(a.length(), b.length());
+            if (c == 0)
+                c = Integer.compare(a.getIndex(), b.getIndex());
+            return c;
+        }
+    };
+
+    private final byte[] blockHash;
+    private final int height;
+    private final UTXOPool pool;
+
+    private UTXOSnapshot(byte[] blockHash, int height, UTXOPool pool) {
+        this.blockHash = blockHash;
+        this.height = height;
+        this.pool = pool;
+    }
+
+    /** @return a copy of the hash of the block the snapshot was taken after */
+    public byte[] getBlockHash() {
+        return blockHash.clone();
+    }
+
+    /** @return the height of the block the snapshot was taken after */
+    public int getHeight() {
+        return height;
+    }
+
+    /** @return the UTXO set after the block */
+    public UTXOPool getPool() {
+        return pool;
+    }
+
+    /** Saves {@code pool}, the UTXO set after block {@code blockHash} at {@code height}, to {@code file} */
+    public static void write(Path file, byte[] blockHash, int height, UTXOPool pool) throws IOException {
+        if (blockHash == null || blockHash.length != Hash256.SIZE)
+            throw new IllegalArgumentException("block hash must be " + Hash256.SIZE + " bytes");
+        ArrayList<OutPoint> keys = new ArrayList<OutPoint>(pool.size());
+        for (UTXO ut : pool.getAllUTXO())
+            keys.add(new OutPoint(ut));
+        keys.sort(BY_KEY);
+        HashMap<PublicKey, Integer> addressIds = new HashMap<PublicKey, Integer>();
+        ArrayList<PublicKey> addresses = new ArrayList<PublicKey>();
+        Transaction.Output[] outputs = new Transaction.Output[keys.size()];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = pool.getTxOutput(keys.get(i));
+            if (!addressIds.containsKey(outputs[i].address)) {
+                addressIds.put(outputs[i].address, addresses.size());
+                addresses.add(outputs[i].address);
+            }
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer out = new Writer(ch);
+            out.reserve(HEADER_SIZE).putLong(MAGIC).putInt(VERSION).putInt(height).put(blockHash)
+                    .putInt(addresses.size()).putLong(keys.size());
+            for (PublicKey address : addresses) {
+                byte[] exponent = ((RSAPublicKey) address).getPublicExponent().toByteArray();
+                byte[] modulus = ((RSAPublicKey) address).getModulus().toByteArray();
+                if (exponent.length >= WireFormat.NULL_LENGTH || modulus.length >= WireFormat.NULL_LENGTH)
+                    throw new IllegalArgumentException("address is too long to save");
+                out.reserve(4).putShort((short) exponent.length).putShort((short) modulus.length);
+                out.put(exponent);
+                out.put(modulus);
+            }
+            for (int i = 0; i < outputs.length; i++) {
+                OutPoint key = keys.get(i);
+                out.reserve(UTXO_SIZE).putLong(key.w0()).putLong(key.w1()).putLong(key.w2()).putLong(key.w3())
+                        .put((byte) key.length()).putInt(key.getIndex()).putLong(outputs[i].value)
+                        .putInt(addressIds.get(outputs[i].address));
+            }
+            out.finish();
+            ch.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the snapshot in {@code file} into a compact pool ({@link UTXOPool#UTXOPool(int)}) if
+     * {@code compact} is set, and into a persistent one otherwise.
+     *
+     * @throws IOException if the file is not a complete, intact snapshot
+     */
+    public static UTXOSnapshot read(Path file, boolean compact) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large to map");
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        if (buf.limit() < HEADER_SIZE + 4)
+            throw new IOException(file + " is truncated");
+        ByteBuffer body = buf.duplicate();
+        body.limit(buf.limit() - 4);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != buf.getInt(buf.limit() - 4))
+            throw new IOException(file + " fails its checksum");
+
+        body.position(0);
+        if (body.getLong() != MAGIC || body.getInt() != VERSION)
+            throw new IOException(file + " is not a version " + VERSION + " UTXO snapshot");
+        int height = body.getInt();
+        byte[] blockHash = new byte[Hash256.SIZE];
+        body.get(blockHash);
+        int addressCount = body.getInt();
+        long count = body.getLong();
+        if (addressCount < 0 || count < 0 || count > body.remaining() / UTXO_SIZE)
+            throw new IOException(file + " has a corrupt header");
+        PublicKey[] addresses = new PublicKey[addressCount];
+        try {
+            for (int i = 0; i < addressCount; i++) {
+                byte[] exponent = new byte[body.getShort() & 0xFFFF];
+                byte[] modulus = new byte[body.getShort() & 0xFFFF];
+                body.get(exponent);
+                body.get(modulus);
+                addresses[i] = TransactionView.decodeKey(exponent, modulus);
+            }
+            if (body.remaining() != count * UTXO_SIZE)
+                throw new IOException(file + " has the wrong size for " + count + " UTXOs");
+
+            UTXOPool pool = compact ? new UTXOPool((int) count) : new UTXOPool();
+            Transaction holder = new Transaction();
+            OutPoint previous = null;
+            for (long i = 0; i < count; i++) {
+                OutPoint key = new OutPoint(body.getLong(), body.getLong(), body.getLong(), body.getLong(),
+                        body.get() & 0xFF, body.getInt());
+                long value = body.getLong();
+                int address = body.getInt();
+                if (key.length() > Hash256.SIZE || address < 0 || address >= addressCount
+                        || previous != null && BY_KEY.compare(previous, key) >= 0)
+                    throw new IOException(file + " has a corrupt UTXO at " + i);
+                pool.addUTXO(key, holder.new Output(value, addresses[address]));
+                previous = key;
+            }
+            return new UTXOSnapshot(blockHash, height, pool);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException(file + " is corrupt", e);
+        }
+    }
+
+    /** Buffers writes to a channel and keeps the running checksum */
+    private static final class Writer {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+
+        Writer(FileChannel ch) {
+            this.ch = ch;
+        }
+
+        /** @return the buffer with room for {@code n} more bytes */
+        ByteBuffer reserve(int n) throws IOException {
+            if (buf.remaining() < n)
+                drain();
+            return buf;
+        }
+
+        void put(byte[] bytes) throws IOException {
+            for (int off = 0; off < bytes.length;) {
+                int n = Math.min(reserve(1).remaining(), bytes.length - off);
+                buf.put(bytes, off, n);
+                off += n;
+            }
+        }
+
+        void finish() throws IOException {
+            drain();
+            buf.putInt((int) crc.getValue());
+            buf.flip();
+            while (buf.hasRemaining())
+                ch.write(buf);
+        }
+
+        private void drain() throws IOException {
+            buf.flip();
+            crc.update(buf.array(), 0, buf.limit());
+            while (buf.hasRemaining())
+                ch.write(buf);
+            buf.clear();
+        }
+    }
+}
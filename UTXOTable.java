@@ -0,0 +1,218 @@
+package blockchain;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+
+/**
+ * A mutable open-addressing hash table from {@code OutPoint} to {@code Transaction.Output}. Neither
+ * keys nor outputs are kept as objects: each slot stores the four hash words, the hash length and
+ * the output index in parallel primitive arrays, next to the output's value and address. An
+ * {@code Output} is an inner object of the transaction that created it, so keeping it would keep
+ * that whole transaction alive; {@link #get} builds a new one on an empty holder transaction
+ * instead. Collisions are resolved by linear probing and removals shift the following run back,
+ * so there are no tombstones.
+ */
+final class UTXOTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final Transaction HOLDER = new Transaction();
+
+    /** four words per slot */
+    private long[] words;
+    /** hash length plus one, 0 marks an empty slot */
+    private byte[] lengths;
+    private int[] indexes;
+    /** {@link UTXOPool#NO_VALUE} with a null address marks a key mapped to a null output */
+    private long[] values;
+    private PublicKey[] addresses;
+    private int size;
+    private int mask;
+
+    UTXOTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 < expectedSize * 4)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private UTXOTable(UTXOTable other) {
+        words = other.words.clone();
+        lengths = other.lengths.clone();
+        indexes = other.indexes.clone();
+        values = other.values.clone();
+        addresses = other.addresses.clone();
+        size = other.size;
+        mask = other.mask;
+    }
+
+    private void allocate(int capacity) {
+        words = new long[capacity * 4];
+        lengths = new byte[capacity];
+        indexes = new int[capacity];
+        values = new long[capacity];
+        addresses = new PublicKey[capacity];
+        mask = capacity - 1;
+    }
+
+    /** @return an independent copy of this table, O(capacity) */
+    UTXOTable copy() {
+        return new UTXOTable(this);
+    }
+
+    /** @return the number of UTXOs in the table */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return a new output equal to the one mapped to {@code key}, or null if there is none. Each
+     *         call allocates, so lookups on the validation path read {@link #getValue} and
+     *         {@link #getAddress} instead.
+     */
+    Transaction.Output get(OutPoint key) {
+        int slot = find(key);
+        if (slot < 0 || values[slot] == UTXOPool.NO_VALUE && addresses[slot] == null)
+            return null;
+        return HOLDER.new Output(values[slot], addresses[slot]);
+    }
+
+    /** @return the address of the output mapped to {@code key}, or null if there is none */
+    PublicKey getAddress(OutPoint key) {
+        int slot = find(key);
+        return slot < 0 ? null : addresses[slot];
+    }
+
+    /** @return the value of the output mapped to {@code key}, or {@link UTXOPool#NO_VALUE} if there is none */
+    long getValue(OutPoint key) {
+        int slot = find(key);
+        return slot < 0 ? UTXOPool.NO_VALUE : values[slot];
+    }
+
+    /** @return true if {@code key} is in the table */
+    boolean containsKey(OutPoint key) {
+        return find(key) >= 0;
+    }
+
+    /** Maps {@code key} to {@code value}, replacing any previous output */
+    void put(OutPoint key, Transaction.Output value) {
+        int slot = spread(key.hashCode()) & mask;
+        while (lengths[slot] != 0) {
+            if (matches(slot, key)) {
+                store(slot, key, value);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        store(slot, key, value);
+        if (++size * 4 > lengths.length * 3)
+            resize(lengths.length * 2);
+    }
+
+    /** Removes {@code key} if it is present */
+    void remove(OutPoint key) {
+        int slot = find(key);
+        if (slot < 0)
+            return;
+        // shift later members of the probe run back so lookups never stop at a hole too early
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (lengths[next] != 0) {
+            int home = home(next);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        lengths[hole] = 0;
+        addresses[hole] = null;
+        size--;
+    }
+
+    /** Appends every key of the table to {@code out} */
+    void collectKeys(ArrayList<UTXO> out) {
+        for (int slot = 0; slot < lengths.length; slot++) {
+            if (lengths[slot] != 0)
+                out.add(keyAt(slot).toUTXO());
+        }
+    }
+
+    private OutPoint keyAt(int slot) {
+        int w = slot << 2;
+        return new OutPoint(words[w], words[w + 1], words[w + 2], words[w + 3], lengths[slot] - 1,
+                indexes[slot]);
+    }
+
+    private int find(OutPoint key) {
+        int slot = spread(key.hashCode()) & mask;
+        while (lengths[slot] != 0) {
+            if (matches(slot, key))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** @return the slot the key stored at {@code slot} hashes to */
+    private int home(int slot) {
+        int w = slot << 2;
+        return spread(OutPoint.hash(words[w], words[w + 1], words[w + 2], words[w + 3], lengths[slot] - 1,
+                indexes[slot])) & mask;
+    }
+
+    private boolean matches(int slot, OutPoint key) {
+        int w = slot << 2;
+        return indexes[slot] == key.getIndex() && words[w] == key.w0()
+                && words[w + 1] == key.w1() && words[w + 2] == key.w2() && words[w + 3] == key.w3()
+                && lengths[slot] == key.length() + 1;
+    }
+
+    private void store(int slot, OutPoint key, Transaction.Output value) {
+        int w = slot << 2;
+        words[w] = key.w0();
+        words[w + 1] = key.w1();
+        words[w + 2] = key.w2();
+        words[w + 3] = key.w3();
+        lengths[slot] = (byte) (key.length() + 1);
+        indexes[slot] = key.getIndex();
+        values[slot] = value == null ? UTXOPool.NO_VALUE : value.value;
+        addresses[slot] = value == null ? null : value.address;
+    }
+
+    private void move(int from, int to) {
+        System.arraycopy(words, from << 2, words, to << 2, 4);
+        lengths[to] = lengths[from];
+        indexes[to] = indexes[from];
+        values[to] = values[from];
+        addresses[to] = addresses[from];
+    }
+
+    private void resize(int capacity) {
+        long[] oldWords = words;
+        byte[] oldLengths = lengths;
+        int[] oldIndexes = indexes;
+        long[] oldValues = values;
+        PublicKey[] oldAddresses = addresses;
+        allocate(capacity);
+        for (int from = 0; from < oldLengths.length; from++) {
+            if (oldLengths[from] == 0)
+                continue;
+            int w = from << 2;
+            int slot = spread(OutPoint.hash(oldWords[w], oldWords[w + 1], oldWords[w + 2], oldWords[w + 3],
+                    oldLengths[from] - 1, oldIndexes[from])) & mask;
+            while (lengths[slot] != 0)
+                slot = (slot + 1) & mask;
+            System.arraycopy(oldWords, w, words, slot << 2, 4);
+            lengths[slot] = oldLengths[from];
+            indexes[slot] = oldIndexes[from];
+            values[slot] = oldValues[from];
+            addresses[slot] = oldAddresses[from];
+        }
+    }
+
+    private static int spread(int h) {
+        int x = h * 0x9E3779B9;
+        return x ^ (x >>> 16);
+    }
+}
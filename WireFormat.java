@@ -0,0 +1,191 @@
+package blockchain;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * The binary encoding of transactions and blocks. All numbers are big-endian and every encoding
+ * starts with the number of bytes that follow it, so a reader can skip one without parsing it.
+ *
+ * <pre>
+ * transaction:
+ *   int    length of the rest of the encoding
+ *   byte   flags, bit 0 set for a coinbase
+ *   int    number of inputs, int number of outputs
+ *   inputs:  ushort previous hash length, ushort signature length
+ *   outputs: ushort exponent length, ushort modulus length
+ *   the raw transaction, exactly the bytes of {@code getRawTx()}
+ *
+ * block:
+ *   int    length of the rest of the encoding
+ *   ushort previous block hash length
+ *   the previous block hash
+ *   int    number of transactions, the coinbase included
+ *   the coinbase, then every transaction of the block, each encoded as above
+ * </pre>
+ *
+ * A length of {@code 0xFFFF} stands for a null array. The header of a transaction only holds the
+ * lengths needed to find each field inside the raw transaction, which is stored unchanged, so a
+ * decoder computes the hash over the original bytes instead of serializing the transaction
+ * again.
+ */
+public final class WireFormat {
+
+    /** the ushort length that stands for a null array */
+    static final int NULL_LENGTH = 0xFFFF;
+
+    static final int FLAG_COINBASE = 1;
+
+    /** length, flags and the two counts */
+    static final int TX_FIXED_HEADER = 4 + 1 + 4 + 4;
+
+    private WireFormat() {
+    }
+
+    /** @return the number of bytes {@link #encode(Transaction, ByteBuffer)} writes for {@code tx} */
+    public static int encodedSize(Transaction tx) {
+        return TX_FIXED_HEADER + 4 * (tx.numInputs() + tx.numOutputs()) + tx.rawTxSize();
+    }
+
+    /** @return the number of bytes {@link #encode(Block, ByteBuffer)} writes for {@code block} */
+    public static int encodedSize(Block block) {
+        byte[] prevHash = block.getPrevBlockHash();
+        int size = 4 + 2 + (prevHash == null ? 0 : prevHash.length) + 4 + encodedSize(block.getCoinbase());
+        for (Transaction tx : block.getTransactions())
+            size += encodedSize(tx);
+        return size;
+    }
+
+    /** @return {@code tx} encoded in a new heap buffer, positioned at its start */
+    public static ByteBuffer encode(Transaction tx) {
+        ByteBuffer dst = ByteBuffer.allocate(encodedSize(tx));
+        encode(tx, dst);
+        dst.flip();
+        return dst;
+    }
+
+    /** @return {@code block} encoded in a new heap buffer, positioned at its start */
+    public static ByteBuffer encode(Block block) {
+        ByteBuffer dst = ByteBuffer.allocate(encodedSize(block));
+        encode(block, dst);
+        dst.flip();
+        return dst;
+    }
+
+    /**
+     * Writes {@code tx} at the position of {@code dst} and advances it past the encoding.
+     *
+     * @throws BufferOverflowException if the encoding does not fit in the remaining bytes of
+     *         {@code dst}, in which case nothing is written
+     * @throws IllegalArgumentException if a hash, signature or key part is 0xFFFF bytes or longer
+     */
+    public static void encode(Transaction tx, ByteBuffer dst) {
+        int rawSize = tx.rawTxSize();
+        int size = TX_FIXED_HEADER + 4 * (tx.numInputs() + tx.numOutputs()) + rawSize;
+        if (size > dst.remaining())
+            throw new BufferOverflowException();
+        dst.putInt(size - 4);
+        dst.put((byte) (tx.isCoinbase() ? FLAG_COINBASE : 0));
+        dst.putInt(tx.numInputs());
+        dst.putInt(tx.numOutputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            putLength(dst, in.prevTxHash);
+            putLength(dst, in.signature);
+        }
+        for (Transaction.Output out : tx.getOutputs()) {
+            putLength(dst, out.exponentLength());
+            putLength(dst, out.modulusLength());
+        }
+        // the size check above keeps the raw bytes inside the limit of dst
+        if (dst.hasArray()) {
+            int off = dst.arrayOffset() + dst.position();
+            tx.writeRawTx(dst.array(), off);
+            dst.position(dst.position() + rawSize);
+        } else {
+            dst.put(tx.getRawTx());
+        }
+    }
+
+    /**
+     * Writes {@code block} at the position of {@code dst} and advances it past the encoding.
+     *
+     * @throws BufferOverflowException if the encoding does not fit in the remaining bytes of
+     *         {@code dst}, in which case nothing is written
+     * @throws IllegalArgumentException if a transaction slot of the block is null
+     */
+    public static void encode(Block block, ByteBuffer dst) {
+        byte[] prevHash = block.getPrevBlockHash();
+        ArrayList<Transaction> txs = block.getTransactions();
+        for (Transaction tx : txs) {
+            if (tx == null)
+                throw new IllegalArgumentException("block has a null transaction");
+        }
+        int size = encodedSize(block);
+        if (size > dst.remaining())
+            throw new BufferOverflowException();
+        dst.putInt(size - 4);
+        putLength(dst, prevHash);
+        if (prevHash != null)
+            dst.put(prevHash);
+        dst.putInt(txs.size() + 1);
+        encode(block.getCoinbase(), dst);
+        for (Transaction tx : txs)
+            encode(tx, dst);
+    }
+
+    /**
+     * Decodes the transaction at the position of {@code src} and advances it past the encoding.
+     * Only the header is read; the view shares the bytes of {@code src}, which must not change
+     * while the view is in use.
+     *
+     * @throws IllegalArgumentException if the encoding is malformed
+     */
+    public static TransactionView decodeTransaction(ByteBuffer src) {
+        return new TransactionView(take(src));
+    }
+
+    /**
+     * Decodes the block at the position of {@code src} and advances it past the encoding. Only
+     * the length of each transaction is read; the view shares the bytes of {@code src}, which
+     * must not change while the view is in use.
+     *
+     * @throws IllegalArgumentException if the encoding is malformed
+     */
+    public static BlockView decodeBlock(ByteBuffer src) {
+        return new BlockView(take(src));
+    }
+
+    /** @return a big-endian slice of the length-prefixed encoding at the position of {@code src} */
+    static ByteBuffer take(ByteBuffer src) {
+        if (src.remaining() < 4)
+            throw new IllegalArgumentException("truncated encoding");
+        int length = src.getInt(src.position());
+        if (length < 0 || length > src.remaining() - 4)
+            throw new IllegalArgumentException("truncated encoding");
+        ByteBuffer slice = src.duplicate();
+        slice.limit(src.position() + 4 + length);
+        slice = slice.slice();
+        src.position(src.position() + 4 + length);
+        return slice;
+    }
+
+    /** @return the ushort length at {@code index} of {@code buf}, or -1 for a null array */
+    static int getLength(ByteBuffer buf, int index) {
+        int length = buf.getShort(index) & 0xFFFF;
+        return length == NULL_LENGTH ? -1 : length;
+    }
+
+    private static void putLength(ByteBuffer dst, byte[] bytes) {
+        if (bytes == null)
+            dst.putShort((short) NULL_LENGTH);
+        else
+            putLength(dst, bytes.length);
+    }
+
+    private static void putLength(ByteBuffer dst, int length) {
+        if (length >= NULL_LENGTH)
+            throw new IllegalArgumentException("field of " + length + " bytes is too long to encode");
+        dst.putShort((short) length);
+    }
+}